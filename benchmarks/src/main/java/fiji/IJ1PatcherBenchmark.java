@@ -0,0 +1,103 @@
+package fiji;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks patching ImageJ 1.x at startup.
+ * <p>
+ * {@link IJ1Patcher#run()} only does its work once per JVM, hence every
+ * measurement is a single shot in a fresh fork. The {@code ij.dir} is pointed
+ * to a Fiji directory whose {@code jars/} holds the {@code ij.jar} of the
+ * class path and, depending on the {@code path} parameter, an
+ * {@code imagej-legacy.jar}:
+ * </p>
+ * <ul>
+ * <li>{@code path=preinit}: with {@code imagej-legacy.jar}, the usual case;
+ * {@code LegacyInjector.preinit()} patches, and no class is compiled.</li>
+ * <li>{@code path=fallback}: without it, the fallback patcher (which compiles
+ * classes with Javassist) runs.</li>
+ * <li>{@code cache=off}: the patched classes are compiled every time.</li>
+ * <li>{@code cache=on}: the classes are taken from the {@link PatchedClassCache}
+ * in {@code target/patcher-cache}; only the very first fork ever (the one
+ * populating the cache) pays the compilation.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class IJ1PatcherBenchmark {
+
+	@Param({ "preinit", "fallback" })
+	public String path;
+
+	@Param({ "off", "on" })
+	public String cache;
+
+	@Setup
+	public void setup() throws IOException {
+		final File ijDir = new File("target/patcher-ij-dir-" + path)
+			.getAbsoluteFile();
+		final File jars = new File(ijDir, "jars");
+		if (!jars.isDirectory() && !jars.mkdirs())
+			throw new IOException("Could not make " + jars);
+		// by resource: loading ij.IJ now would keep it from being patched
+		copyJar("ij/IJ.class", new File(jars, "ij.jar"));
+		if ("preinit".equals(path))
+			copyJar("net/imagej/patcher/LegacyInjector.class", new File(jars,
+				"imagej-legacy.jar"));
+		System.setProperty("ij.dir", ijDir.getPath());
+		System.setProperty("fiji.patcher.cache.dir", "off".equals(cache) ?
+			"false" : new File("target/patcher-cache").getAbsolutePath());
+	}
+
+	@Benchmark
+	public void run() {
+		new IJ1Patcher().run();
+	}
+
+	/** Copies the jar containing a resource. */
+	private static void copyJar(final String resource, final File target)
+		throws IOException
+	{
+		if (target.exists())
+			return;
+		final URL url = IJ1PatcherBenchmark.class.getClassLoader().getResource(
+			resource);
+		if (url == null)
+			throw new IOException("Not found: " + resource);
+		final String path = url.toString();
+		File source = null;
+		if (path.startsWith("jar:file:") && path.contains("!/")) try {
+			source = new File(new URI(path.substring(4, path.indexOf("!/"))));
+		} catch (final URISyntaxException e) {
+			throw new IOException(e);
+		}
+		if (source != null && source.isFile())
+			Files.copy(source.toPath(), target.toPath());
+		else
+			// e.g. target/classes/: an empty jar makes the same decisions
+			new FileOutputStream(target).close();
+	}
+}
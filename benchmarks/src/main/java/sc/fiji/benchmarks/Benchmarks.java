@@ -0,0 +1,43 @@
+package sc.fiji.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs Fiji's JMH benchmarks, writing the results as JSON.
+ * <p>
+ * All of JMH's command-line options are accepted, e.g. a regular expression
+ * selecting the benchmarks to run. Unless specified otherwise, the results are
+ * written to {@code jmh-result.json} (the {@code benchmarks.output} system
+ * property overrides that), and the GC profiler is enabled so that the
+ * allocation rate per operation is recorded alongside the timings.
+ * </p>
+ * <p>
+ * The benchmarks creating menus need a display (e.g. {@code xvfb-run}), as
+ * AWT menus cannot be instantiated in headless mode.
+ * </p>
+ */
+public class Benchmarks {
+
+	public static void main(final String[] args) throws RunnerException,
+			CommandLineOptionException {
+		final CommandLineOptions options = new CommandLineOptions(args);
+		final ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+		if (!options.getResultFormat().hasValue())
+			builder.resultFormat(ResultFormatType.JSON);
+		if (!options.getResult().hasValue())
+			builder.result(new File(System.getProperty("benchmarks.output",
+				"jmh-result.json")).getAbsolutePath());
+		if (options.getProfilers().isEmpty())
+			builder.addProfiler(GCProfiler.class);
+		new Runner(builder.build()).run();
+	}
+}
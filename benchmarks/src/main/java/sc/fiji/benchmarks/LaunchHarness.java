@@ -0,0 +1,153 @@
+package sc.fiji.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the time from launching a JVM to the completion of the first
+ * command, headlessly.
+ * <p>
+ * Each run starts a fresh JVM with this JVM's class path running
+ * {@link LaunchProbe}. Options for those JVMs can be passed via the
+ * {@code launch.jvmArgs} system property (space-separated), e.g.
+ * {@code -Dlaunch.jvmArgs="-Xmx2g -Dij.dir=/path/to/Fiji.app"}.
+ * </p>
+ * <p>
+ * Usage: {@code LaunchHarness [-n <runs>] [-o <file.json>] [<command>
+ * [<options>]]}. The result, written to {@code launch-result.json} by
+ * default, holds the timings of every run, as well as minimum, median and
+ * maximum per phase.
+ * </p>
+ */
+public class LaunchHarness {
+
+	private final static String[] PHASES = { "main", "context", "firstCommand" };
+
+	public static void main(final String[] args) throws IOException,
+			InterruptedException {
+		int runs = 10;
+		File output = new File("launch-result.json");
+		final List<String> probeArgs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-n".equals(args[i]) && i + 1 < args.length)
+				runs = Math.max(1, Integer.parseInt(args[++i]));
+			else if ("-o".equals(args[i]) && i + 1 < args.length)
+				output = new File(args[++i]);
+			else
+				probeArgs.add(args[i]);
+		}
+
+		final List<long[]> results = new ArrayList<long[]>();
+		for (int run = 0; run < runs; run++) {
+			final long[] timings = launch(probeArgs);
+			System.err.println("Run " + (run + 1) + "/" + runs + ": "
+				+ Arrays.toString(timings) + " ms " + Arrays.toString(PHASES));
+			results.add(timings);
+		}
+		write(output, probeArgs, results);
+		System.err.println("Wrote " + output.getAbsolutePath());
+	}
+
+	private static long[] launch(final List<String> probeArgs)
+			throws IOException, InterruptedException {
+		final List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java")
+			.getPath());
+		final String jvmArgs = System.getProperty("launch.jvmArgs", "").trim();
+		if (!jvmArgs.isEmpty())
+			command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+		command.add("-Djava.awt.headless=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(LaunchProbe.class.getName());
+		command.addAll(probeArgs);
+
+		final Process process = new ProcessBuilder(command)
+			.redirectErrorStream(true).start();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+			process.getInputStream(), "UTF-8"));
+		String result = null;
+		try {
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null)
+					break;
+				if (line.startsWith(LaunchProbe.PREFIX))
+					result = line.substring(LaunchProbe.PREFIX.length());
+			}
+		}
+		finally {
+			reader.close();
+		}
+		final int exitCode = process.waitFor();
+		if (result == null)
+			throw new IOException("Launch failed with exit code " + exitCode);
+
+		final long[] timings = new long[PHASES.length];
+		for (int i = 0; i < PHASES.length; i++) {
+			final Matcher matcher = Pattern.compile("\"" + PHASES[i]
+				+ "\": ([0-9]+)").matcher(result);
+			if (!matcher.find())
+				throw new IOException("Unexpected probe output: " + result);
+			timings[i] = Long.parseLong(matcher.group(1));
+		}
+		return timings;
+	}
+
+	private static void write(final File file, final List<String> probeArgs,
+			final List<long[]> results) throws IOException {
+		final PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			out.println("{");
+			out.println("  \"command\": \"" + escape(probeArgs.isEmpty() ?
+				"Gaussian Blur..." : probeArgs.get(0)) + "\",");
+			out.println("  \"javaVersion\": \"" + escape(System.getProperty(
+				"java.version")) + "\",");
+			out.println("  \"runs\": [");
+			for (int i = 0; i < results.size(); i++) {
+				out.print("    " + toJSON(results.get(i)));
+				out.println(i + 1 < results.size() ? "," : "");
+			}
+			out.println("  ],");
+			out.println("  \"summary\": {");
+			for (int p = 0; p < PHASES.length; p++) {
+				final List<Long> values = new ArrayList<Long>();
+				for (final long[] timings : results)
+					values.add(timings[p]);
+				Collections.sort(values);
+				out.print("    \"" + PHASES[p] + "\": {\"min\": " + values.get(0)
+					+ ", \"median\": " + values.get(values.size() / 2) + ", \"max\": "
+					+ values.get(values.size() - 1) + "}");
+				out.println(p + 1 < PHASES.length ? "," : "");
+			}
+			out.println("  }");
+			out.println("}");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static String toJSON(final long[] timings) {
+		final StringBuilder builder = new StringBuilder("{");
+		for (int i = 0; i < PHASES.length; i++) {
+			if (i > 0)
+				builder.append(", ");
+			builder.append('"').append(PHASES[i]).append("\": ").append(timings[i]);
+		}
+		return builder.append('}').toString();
+	}
+
+	private static String escape(final String string) {
+		return string.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,46 @@
+package sc.fiji.benchmarks;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.lang.management.ManagementFactory;
+
+import net.imagej.ImageJ;
+
+/**
+ * Starts Fiji headlessly, runs a single command and reports how long each
+ * phase took, counting from the start of the JVM.
+ * <p>
+ * This class is meant to be launched in a fresh JVM by {@link LaunchHarness};
+ * it prints a single line, prefixed with {@value #PREFIX}, holding a JSON
+ * object with the timings in milliseconds.
+ * </p>
+ */
+public class LaunchProbe {
+
+	final static String PREFIX = "LAUNCH-PROBE ";
+
+	/**
+	 * @param args the command to run (defaults to {@code Gaussian Blur...}) and
+	 *          its options (defaults to {@code sigma=2})
+	 */
+	public static void main(final String[] args) {
+		final String command = args.length > 0 ? args[0] : "Gaussian Blur...";
+		final String options = args.length > 1 ? args[1] : "sigma=2";
+
+		final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+		final long main = System.currentTimeMillis();
+		final ImageJ ij = new ImageJ();
+		final long context = System.currentTimeMillis();
+		final ImagePlus imp = IJ.createImage("probe", "8-bit ramp", 1024, 1024, 1);
+		IJ.run(imp, command, options);
+		final long firstCommand = System.currentTimeMillis();
+
+		System.out.println(PREFIX + "{\"main\": " + (main - jvmStart)
+			+ ", \"context\": " + (context - jvmStart) + ", \"firstCommand\": "
+			+ (firstCommand - jvmStart) + "}");
+		System.out.flush();
+		ij.context().dispose();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,55 @@
+package sc.fiji.compat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the two ways {@link FijiTools} can tell whether the script editor
+ * is among the callers, at a given call stack depth (the check runs once per
+ * file opened, e.g. for every file of a dropped folder).
+ * <p>
+ * Run with the GC profiler (the default in {@link sc.fiji.benchmarks.Benchmarks})
+ * to see the allocations per check.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CallerCheckBenchmark {
+
+	@Param({ "10", "100" })
+	public int depth;
+
+	@SuppressWarnings("deprecation")
+	@Benchmark
+	public boolean stackTraceContains() {
+		return recurse(depth, true);
+	}
+
+	@Benchmark
+	public boolean isCalledFrom() {
+		return recurse(depth, false);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static boolean recurse(final int depth, final boolean formatted) {
+		if (depth > 0)
+			return recurse(depth - 1, formatted);
+		return formatted ?
+			FijiTools.stackTraceContains("fiji.scripting.TextEditor.open(") :
+			FijiTools.isCalledFrom("fiji.scripting.TextEditor", "open");
+	}
+}
@@ -0,0 +1,76 @@
+package sc.fiji.compat;
+
+import java.awt.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the type-ahead lookup of the {@link java.awt.FileDialog}
+ * decorator in a directory listing with {@code files} entries.
+ * <p>
+ * The lookup itself should not allocate; the snapshot of the items it
+ * searches is only taken when the listing changes.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class FileDialogDecoratorBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int files;
+
+	private List list;
+	private String[] names, prefixes;
+	private int next;
+
+	@Setup
+	public void setup() {
+		list = new List();
+		names = new String[files];
+		for (int i = 0; i < files; i++)
+			names[i] = String.format("image-%06d.tif", i);
+		for (final String name : names)
+			list.add(name);
+
+		final Random random = new Random(17);
+		prefixes = new String[1024];
+		for (int i = 0; i < prefixes.length; i++) {
+			final String name = names[random.nextInt(files)];
+			prefixes[i] = name.substring(0, 1 + random.nextInt(name.length()));
+		}
+	}
+
+	@Benchmark
+	public int findItemForPrefix() {
+		next = (next + 1) & (prefixes.length - 1);
+		return FileDialogDecorator.findItemForPrefix(list, prefixes[next]);
+	}
+
+	/** Type-ahead of a prefix that matches nothing. */
+	@Benchmark
+	public int findMissingPrefix() {
+		return FileDialogDecorator.findItemForPrefix(list, "zzz");
+	}
+
+	/** The one-time cost after the dialog lists another directory. */
+	@Benchmark
+	public Object snapshot() {
+		return new FileDialogDecorator.Snapshot(names);
+	}
+}
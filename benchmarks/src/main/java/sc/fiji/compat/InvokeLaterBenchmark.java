@@ -0,0 +1,117 @@
+package sc.fiji.compat;
+
+import java.awt.EventQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a task deferred via {@link InvokeLater} takes to run on
+ * the event dispatch thread while the EDT is kept busy.
+ * <p>
+ * The load is a background thread posting {@code load} short events (each
+ * spinning for 10 microseconds) to the event queue at a time, and posting the next batch
+ * once the previous one was handled.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class InvokeLaterBenchmark {
+
+	@Param({ "0", "10", "100" })
+	public int load;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+	private Thread loader;
+
+	@Setup(Level.Trial)
+	public void startLoad() {
+		running.set(true);
+		loader = new Thread("EDT load") {
+			@Override
+			public void run() {
+				final Runnable spin = new Runnable() {
+					@Override
+					public void run() {
+						final long end = System.nanoTime() + 10000;
+						while (System.nanoTime() < end) {
+							// busy
+						}
+					}
+				};
+				while (running.get()) try {
+					for (int i = 0; i < load; i++)
+						EventQueue.invokeLater(spin);
+					EventQueue.invokeAndWait(new Runnable() {
+						@Override
+						public void run() {
+							// wait for the batch
+						}
+					});
+					if (load == 0)
+						Thread.sleep(1);
+				} catch (final Exception e) {
+					return;
+				}
+			}
+		};
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopLoad() throws InterruptedException {
+		running.set(false);
+		loader.join();
+	}
+
+	/** The classic way: re-queue up to 25 times. */
+	@Benchmark
+	public void later() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		new InvokeLater(25, countDown(latch)).later(0);
+		latch.await();
+	}
+
+	@Benchmark
+	public void whenIdle() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		InvokeLater.whenIdle(countDown(latch));
+		latch.await();
+	}
+
+	/** For comparison: a plain {@link EventQueue#invokeLater(Runnable)}. */
+	@Benchmark
+	public void invokeLater() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		EventQueue.invokeLater(countDown(latch));
+		latch.await();
+	}
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+}
@@ -0,0 +1,116 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.Menus;
+
+import java.awt.Menu;
+import java.awt.MenuBar;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks menu lookups and installation with many menu items.
+ * <p>
+ * A synthetic {@code Plugins>Benchmark} menu tree with {@code items} entries
+ * (spread over submenus of 100 items each) is added to ImageJ 1.x' menu bar.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class MenuBenchmark {
+
+	private final static String ROOT = "Plugins>Benchmark";
+	private final static int PER_SUBMENU = 100;
+
+	@Param({ "100", "1000", "10000", "50000" })
+	public int items;
+
+	private MenuBar menuBar;
+	private String[] paths;
+	private int next, installed;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if (IJ.getInstance() == null)
+			new ImageJ(ImageJ.NO_SHOW);
+		menuBar = Menus.getMenuBar();
+		paths = new String[items];
+		for (int i = 0; i < items; i++) {
+			final String submenu = ROOT + ">Submenu " + (i / PER_SUBMENU);
+			final String label = "Benchmark item " + i;
+			FijiTools.installPlugin(submenu, label, "ij.plugin.Hotkeys(\"" + i
+				+ "\")");
+			paths[i] = submenu + ">" + label;
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void removeInstalled() {
+		@SuppressWarnings("unchecked")
+		final Hashtable<String, String> commands = Menus.getCommands();
+		for (int i = 0; i < installed; i++)
+			commands.remove("Installed item " + i);
+		final Menu menu = (Menu)FijiTools.getMenuItem(menuBar, ROOT + ">Installed",
+			false);
+		if (menu != null)
+			menu.removeAll();
+		installed = 0;
+	}
+
+	/** Looks up the items in turn. */
+	@Benchmark
+	public Object getMenuItem() {
+		if (++next >= items)
+			next = 0;
+		return FijiTools.getMenuItem(menuBar, paths[next], false);
+	}
+
+	/** Looks up the last item, i.e. the worst case for a linear search. */
+	@Benchmark
+	public Object getLastMenuItem() {
+		return FijiTools.getMenuItem(menuBar, paths[items - 1], false);
+	}
+
+	/** Looks up an item that does not exist. */
+	@Benchmark
+	public Object getMissingMenuItem() {
+		return FijiTools.getMenuItem(menuBar, ROOT + ">Submenu 0>Missing item",
+			false);
+	}
+
+	/** Installs a new item next to the existing ones. */
+	@Benchmark
+	public Object installPlugin() {
+		final int i = installed++;
+		return FijiTools.installPlugin(ROOT + ">Installed", "Installed item " + i,
+			"ij.plugin.Hotkeys(\"installed " + i + "\")");
+	}
+
+	/** {@code Help>Refresh Menus}' Fiji part, with all items present. */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5, batchSize = 1)
+	@Measurement(iterations = 20, batchSize = 1)
+	public void menuRefresher() {
+		new MenuRefresher().run();
+	}
+}
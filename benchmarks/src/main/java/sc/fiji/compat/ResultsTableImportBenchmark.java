@@ -0,0 +1,123 @@
+package sc.fiji.compat;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks importing a results table with eight measurement columns and a
+ * label, comparing {@link ResultsTableImporter} (with one and with all
+ * threads) with what {@code macros/ImportResultsTable.txt} used to do: split
+ * the file into lines, and each line into cells.
+ * <p>
+ * Divide the size of the file (printed during setup) by the time per
+ * operation to obtain the import rate.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResultsTableImportBenchmark {
+
+	private final static String[] HEADINGS = { "Area", "Mean", "StdDev", "Min",
+		"Max", "X", "Y", "Perim." };
+
+	@Param({ "100000", "1000000" })
+	public int rows;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		file = File.createTempFile("results-", ".csv");
+		final Random random = new Random(17);
+		final Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write(" ,Label");
+			for (final String heading : HEADINGS)
+				out.write("," + heading);
+			out.write("\n");
+			for (int i = 0; i < rows; i++) {
+				out.write((i + 1) + ",blobs.gif:" + i);
+				for (int j = 0; j < HEADINGS.length; j++)
+					out.write("," + Math.round(random.nextDouble() * 1e6) / 1e3);
+				out.write("\n");
+			}
+		}
+		finally {
+			out.close();
+		}
+		System.err.println("\n" + file + ": " + (file.length() >> 20) + " MB");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public ResultsTable importer() throws IOException {
+		return new ResultsTableImporter(file, Runtime.getRuntime()
+			.availableProcessors()).read();
+	}
+
+	@Benchmark
+	public ResultsTable importerSingleThreaded() throws IOException {
+		return new ResultsTableImporter(file, 1).read();
+	}
+
+	/** The old macro's approach, minus the macro interpreter. */
+	@Benchmark
+	public ResultsTable splitLines() throws IOException {
+		final StringBuilder builder = new StringBuilder();
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			final char[] buffer = new char[65536];
+			for (;;) {
+				final int count = reader.read(buffer);
+				if (count < 0)
+					break;
+				builder.append(buffer, 0, count);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		final String[] lines = builder.toString().split("\n");
+		final String[] labels = lines[0].split("[,\t]");
+		final ResultsTable table = new ResultsTable();
+		for (int i = 1; i < lines.length; i++) {
+			final String[] items = lines[i].split("[,\t]");
+			table.incrementCounter();
+			table.setLabel(items[1], i - 1);
+			for (int j = 2; j < items.length; j++)
+				table.addValue(labels[j], Double.parseDouble(items[j]));
+		}
+		return table;
+	}
+}
@@ -0,0 +1,59 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImageJ;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks walking ImageJ 1.x' {@code File>Open Samples} menu.
+ * <p>
+ * {@link SampleImageLoader#install()} runs on every {@code Help>Refresh Menus}
+ * and consults the sample cache for each sample; set
+ * {@code -Dfiji.samples.cache.dir=...} to benchmark a populated cache.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SampleImageLoaderBenchmark {
+
+	private int count;
+
+	@Setup
+	public void setup() {
+		if (IJ.getInstance() == null)
+			new ImageJ(ImageJ.NO_SHOW);
+	}
+
+	@Benchmark
+	public int handleSamples() {
+		count = 0;
+		SampleImageLoader.handleSamples(new SampleImageLoader.SampleHandler() {
+			@Override
+			public void handle(final String label, final String url) {
+				count++;
+			}
+		});
+		return count;
+	}
+
+	@Benchmark
+	public void install() {
+		SampleImageLoader.install();
+	}
+}
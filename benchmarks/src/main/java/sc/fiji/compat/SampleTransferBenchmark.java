@@ -0,0 +1,108 @@
+package sc.fiji.compat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks downloading a sample image from a local HTTP server, comparing
+ * {@link SampleFetcher#transfer} with a plain buffered stream copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class SampleTransferBenchmark {
+
+	@Param({ "1", "64" })
+	public int megabytes;
+
+	private HttpServer server;
+	private URL url;
+	private File directory, destination;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final byte[] data = new byte[megabytes << 20];
+		new Random(17).nextBytes(data);
+		server = HttpServer.create(new InetSocketAddress(InetAddress
+			.getLoopbackAddress(), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, data.length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(data);
+				out.close();
+			}
+		});
+		server.start();
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+			+ "/sample.tif");
+		directory = File.createTempFile("fiji-samples-", "");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Could not make " + directory);
+		destination = new File(directory, "sample.tif");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop(0);
+		destination.delete();
+		directory.delete();
+	}
+
+	@Benchmark
+	public long transfer() throws IOException {
+		SampleFetcher.transfer(url.openConnection(), destination, null);
+		return destination.length();
+	}
+
+	/** The way samples were downloaded before: a 16k buffer, no channels. */
+	@Benchmark
+	public long streamCopy() throws IOException {
+		final InputStream in = url.openConnection().getInputStream();
+		final OutputStream out = new FileOutputStream(destination);
+		try {
+			final byte[] buffer = new byte[16384];
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0)
+					break;
+				out.write(buffer, 0, count);
+			}
+		}
+		finally {
+			in.close();
+			out.close();
+		}
+		return destination.length();
+	}
+}
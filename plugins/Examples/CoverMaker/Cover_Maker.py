@@ -1,201 +1,16 @@
 # Cover Maker was written by PAvel Tomancak with minor help of
 # Albert Cardona & Johannes Schindelin (Pop & Mom)
+#
+# The tiles are matched and the cover is rendered by sc.fiji.compat.CoverMaker,
+# using the index built by Prepare Cover Maker Database.
 
-from ij import IJ, ImagePlus, ImageStack
-from ij.gui import Roi
-from ij.io import FileSaver
+from ij import IJ, ImagePlus, Prefs
 from ij.process import ColorProcessor
-from math import sqrt, pow
-import os
-from os import path
-import sys
-import re
-import random
-from fiji.util import CoverMakerUtils
 from fiji.util.gui import GenericDialogPlus
-from mpicbg.ij.integral import Scale
 from java.awt.event import ActionListener, TextListener
-from java.lang import Float
-from loci.formats.gui import BufferedImageReader
-import zipfile
-import zlib
-
-def CropInputImage(ip, width, height):
-	temp = int(ip.width/width)
-	newwidth = temp * width
-	temp = int(ip.height/height)
-	newheight = temp * height
-
-	roi = Roi(0,0,newwidth,newheight)
-	ip.setRoi(roi)
-	ip = ip.crop()
-	return ip.crop()
-
-#split template image into tiles
-def SplitImage(ip, width, height):
-	stack = ImageStack(width, height)
-
-	for x in range(0,ip.width,width):
-		for y in range(0,ip.height,height):
-			roi = Roi(x,y,width,height)
-			ip.setRoi(roi)
-			ip2 = ip.crop()
-			stack.addSlice(None, ip2)
-	return stack
-
-#compare all tiles to all downsampled database images of the same size
-#iterate through template slices
-def CreateCover(ip, width, height, dbpath):
-	# split input image into appropriate tiles
-	stackt = SplitImage(ip, width, height)
-	impt = ImagePlus("template", stackt)
-	nSlicestmp = impt.getNSlices()
-
-	# open the preprocessed database
-	print dbpath
-	impd = IJ.openImage(dbpath)
-	stackd = impd.getImageStack()
-	nSlicesdb = impd.getNSlices()
-
-	#associate index with image names
-	imageNames = impd.getProperty('Info')
-	imageList = imageNames.split(';')
-
-	# set up preview output
-	outputip = ColorProcessor(ip.width, ip.height)
-	outputimp = ImagePlus("output", outputip)
-	outputimp.show()
-
-	cols = ip.width/width
-	rows = ip.height/height
-
-	print str(cols) + "," + str(rows)
-
-	x = 0
-	y = 0
-
-	arrays = [None, None] # a list of two elements
-	tileNames = {}
-	tileIndex = {}
-	placed = {}
-	used = {}
-
-	while len(placed) < nSlicestmp:
-		randomTileIndex = random.randint(1, nSlicestmp)
-		if randomTileIndex in placed:
-			continue
-		# transform to row adn column coordinate
-		if randomTileIndex%rows == 0:
-			y = rows-1
-			x = (randomTileIndex/rows)-1
-		else:
-			y = (randomTileIndex%rows)-1
-			x = int(randomTileIndex/rows)
-
-		pixelst = stackt.getPixels(randomTileIndex)
-		minimum = Float.MAX_VALUE
-		#iterate through database images
-		j = 1
-		indexOfBestMatch = 0
-		arrays[0] = pixelst
-		while j < nSlicesdb:
-			if j in used:
-				j +=1
-				continue
-			arrays[1] = stackd.getPixels(j)
-			diff = CoverMakerUtils.tileTemplateDifference(arrays)
-			if diff < minimum:
-				minimum = diff
-				indexOfBestMatch = j
-			j += 1
-		ip = stackd.getProcessor(indexOfBestMatch)
-		outputip.copyBits(ip, x*width, y*height, 0)
-		used[indexOfBestMatch] = 1
-		tileNames[randomTileIndex] = imageList[indexOfBestMatch-1]
-		tileIndex[randomTileIndex] = indexOfBestMatch-1
-		outputimp.draw()
-		placed[randomTileIndex] = 1
-
-	return tileNames, tileIndex, cols, rows
-
-def ScaleImageToSize(ip, width, height):
-	"""Scale image to a specific size using Stephans scaler"""
-	smaller = ip.scale( width, height );
-	return smaller
-
-def SaveCoverFromFs(tiles, newwidth, newheight, cols, rows):
-
-	tilewidth = int(newwidth/cols)
-	tileheight = int(newheight/rows)
-
-	newwidth = int(newwidth/tilewidth) * tilewidth
-	newheight = int(newheight/tileheight) * tileheight
-
-	hiresoutip = ColorProcessor(newwidth, newheight)
-	hiresout = ImagePlus("hi res output", hiresoutip)
-	hiresout.show()
-
-	x = 0
-	y = -1
-
-	plane = []
-
-	# scale the images
-	for i in sorted(tiles.iterkeys()):
-		if y < rows-1:
-			y += 1
-		else:
-			y = 0
-			x += 1
-		imp = IJ.openImage(str(tiles[i]))
-		scale = Scale(imp.getProcessor())
-		ipscaled = ScaleImageToSize(scale, tilewidth, tileheight)
-		hiresoutip.copyBits(ipscaled, x*tilewidth, y*tileheight, 0)
-		hiresout.draw()
-
-
-def SaveCoverFromZip(tileIndex, newwidth, newheight, cols, rows, originalspath):
-	baseDir = re.sub(r'\/originals.zip', "", originalspath)
-
-	#print baseDir
-
-	zf = zipfile.ZipFile(originalspath, mode='r')
-
-	tilewidth = int(newwidth/cols)
-	tileheight = int(newheight/rows)
-
-	newwidth = int(newwidth/tilewidth) * tilewidth
-	newheight = int(newheight/tileheight) * tileheight
-
-	hiresoutip = ColorProcessor(newwidth, newheight)
-	hiresout = ImagePlus("hi res output", hiresoutip)
-	hiresout.show()
-
-	x = 0
-	y = -1
-
-	plane = []
-
-	# scale the images
-	for i in sorted(tileIndex.iterkeys()):
-		if y < rows-1:
-			y += 1
-		else:
-			y = 0
-			x += 1
-		#bi = bir.openImage(tileIndex[i]);
-		#ip = ColorProcessor(bi)
-		image = zf.read(str(tileIndex[i]) + ".jpeg")
-		#IJ.log("Placing image :" + str(tileIndex[i]) + ".jpeg")
-		my_file = open(baseDir + 'temporary.jpeg','w')
-		my_file.write(image)
-		my_file.close()
-		imp = IJ.openImage(baseDir + "/temporary.jpeg")
-		ip = imp.getProcessor()
-		scale = Scale(ip)
-		ipscaled = ScaleImageToSize(scale, tilewidth, tileheight)
-		hiresoutip.copyBits(ipscaled, x*tilewidth, y*tileheight, 0)
-		hiresout.draw()
+from java.io import File
+from java.lang import System
+from sc.fiji.compat import CoverMaker, CoverMakerIndex
 
 class ResolutionListener(TextListener):
 	def __init__(self, resField, widthPixels, heightPixels, widthInches, heightInches):
@@ -230,10 +45,7 @@ def Dialog(imp):
 	if imp:
 		gd = GenericDialogPlus("Cover Maker")
 		gd.addMessage("Input Options")
-		gd.addFileField("Select image database", "", 20)
-		gd.addMessage("Cover Maker Options")
-		gd.addNumericField("tile width", 12, 0)
-		gd.addNumericField("tile height", 9, 0)
+		gd.addFileField("Select image database (.index)", "", 20)
 
 		gd.showDialog()
 
@@ -241,10 +53,8 @@ def Dialog(imp):
 			print "User canceled dialog!"
 			return
 		databasepath = gd.getNextString()
-		tilewidth = gd.getNextNumber()
-		tileheight = gd.getNextNumber()
 
-		return databasepath, imp.getWidth(), imp.getHeight(), int(tilewidth), int(tileheight)
+		return databasepath
 	else:
 		IJ.showMessage( "You should have at least one image open." )
 
@@ -263,7 +73,6 @@ def SaveDialog(imp):
 		gd.addNumericField("height (pixels)", defaultHeight*dpi, 0)
 		gd.addNumericField("width (inches)", defaultWidth, 2)
 		gd.addNumericField("height (inches)", defaultHeight, 2)
-		gd.addFileField("Select Originals database", "", 20)
 
 		fields = gd.getNumericFields()
 
@@ -288,9 +97,8 @@ def SaveDialog(imp):
 		newres = gd.getNextNumber()
 		newwidth = gd.getNextNumber()
 		newheight = gd.getNextNumber()
-		originalspath = gd.getNextString()
 
-		return int(newwidth), int(newheight), newres, originalspath
+		return int(newwidth), int(newheight), newres
 	else:
 		IJ.showMessage( "You should have at least one image open." )
 
@@ -299,15 +107,19 @@ imp = IJ.getImage()
 ratio = float(imp.getWidth()) / float(imp.getHeight())
 
 #get options
-(dbpath, width, height, tilewidth, tileheight) = Dialog(imp)
+dbpath = Dialog(imp)
 
 # run program
-ip = CropInputImage(imp.getProcessor(), tilewidth, tileheight)
-tileName, tileIndex, cols, rows = CreateCover(ip, tilewidth, tileheight, dbpath)
+index = CoverMakerIndex.open(File(dbpath))
+maker = CoverMaker(index, Prefs.getThreads())
+cols = imp.getWidth() / index.getTileWidth()
+rows = imp.getHeight() / index.getTileHeight()
+outputimp = ImagePlus("output", ColorProcessor(cols * index.getTileWidth(), rows * index.getTileHeight()))
+outputimp.show()
+start = System.currentTimeMillis()
+photos = maker.match(imp.getProcessor(), outputimp)
+IJ.log("Matched " + str(len(photos)) + " tiles against " + str(index.size()) + " photos in " + str(System.currentTimeMillis() - start) + " ms")
 
 # save output
-newwidth, newheight, res, originalspath = SaveDialog(imp)
-if originalspath:
-	SaveCoverFromZip(tileIndex, newwidth, newheight, cols, rows, originalspath)
-else:
-	SaveCoverFromFs(tileName, newwidth, newheight, cols, rows)
+newwidth, newheight, res = SaveDialog(imp)
+maker.render(photos, newwidth, newheight).show()
@@ -1,29 +1,17 @@
-from ij import IJ, ImagePlus, ImageStack
-from ij.io import FileSaver
-from ij.process import ImageConverter, StackConverter
-from mpicbg.ij.integral import Scale
+# The photos are indexed by sc.fiji.compat.CoverMakerIndex: in parallel, and
+# incrementally, i.e. running this again only reads new or changed photos.
+# The result is one index file per tile size, <width>_<height>.index, to be
+# selected in Cover Maker.
+
+from ij import IJ, Prefs
 import os
 import sys
 from os import path, walk
 from loci.formats import ImageReader
-from loci.formats import ImageWriter
 from fiji.util.gui import GenericDialogPlus
 from java.awt.event import TextListener
-import zipfile
-import zlib
-
-def ScaleImageToSize(ip, width, height):
-	"""Scale image to a specific size using Stephans scaler"""
-	smaller = ip.scale( width, height )
-	return smaller
-
-def SaveToZip(zf, ip, baseDir, counter):
-	fs = FileSaver(ip)
-	fs.setJpegQuality(75)
-	fs.saveAsJpeg(baseDir + "/tmp.jpeg")
-	zipName = str(counter) + ".jpeg"
-	zf.write(baseDir + "/tmp.jpeg", arcname=zipName)
-	os.remove(baseDir + "/tmp.jpeg")
+from java.io import File
+from sc.fiji.compat import CoverMakerIndex
 
 def DirList(baseDir):
 	r = ImageReader()
@@ -51,71 +39,8 @@ def DirList(baseDir):
 		summary = summary + "\nFound " + str(v) + " images of dimension " + str(dim[0]) + "x" + str(dim[1]) + " apect ratio " + str(round(ratio, 2))
 	return summary
 
-def PrepareDatabase(minw, maxw, baseDir, aspectRatio, majorWidth, majorHeight):
-	outputpath = baseDir + "/" + str(majorWidth) + "_" + str(majorHeight) + "_orig.tif"
-	#initialize stacks and labels
-	stackScaled = []
-	stackOrig = ImageStack(majorWidth, majorHeight)
-	imageNames = []
-	for i in range(minw, maxw+1):
-		stackScaled.append(ImageStack(i, int(round(i/aspectRatio, 0))))
-		imageNames.append('')
-
-	counter = 0
-
-	# initialize zip file for originals
-	zf = zipfile.ZipFile(baseDir + "/originals.zip", mode='w', compression=zipfile.ZIP_DEFLATED, allowZip64=1)
-	zf.writestr('from_string.txt', 'hello')
-	zf.close()
-	zf = zipfile.ZipFile(baseDir + "/originals.zip", mode='a', compression=zipfile.ZIP_DEFLATED, allowZip64=1)
-
-	for root, dirs, files in os.walk(str(baseDir)):
-		for f1 in files:
-			if f1.endswith(".jpg") or f1.endswith(".jpe") or f1.endswith(".jpeg"):
-				id = root + "/" +  f1
-				IJ.redirectErrorMessages()
-				IJ.redirectErrorMessages(1)
-				imp = IJ.openImage(id)
-				if imp is None:
-					print "Couldn\'t open image from file:", id
-					continue
-				# skip non RGBimages
-				if imp.getProcessor().getNChannels() != 3:
-					print "Converting non RGB image:", id
-					if imp.getStackSize() > 1:
-						StackConverter(imp).convertToRGB()
-					else:
-						ImageConverter(imp).convertToRGB()
-				#skip images with different aspect ratio
-				width = imp.getWidth()
-				height = imp.getHeight()
-				ratio = round(float(width)/float(height), 2) # this makes the ratio filering approximate, minor variations in image dimensions will be ignored
-				if ratio != aspectRatio:
-					IJ.log("Skipping image of size: " + str(width) + "," + str(height))
-					continue
-				# now scale the image within a given range
-				scale = Scale(imp.getProcessor())
-				IJ.log("Scaling image " + str(counter) + " " + str(id))
-				for i in range(minw, maxw+1):
-					stackScaled[i-minw].addSlice(None, ScaleImageToSize(scale, i, int(round(i/aspectRatio, 0))))
-					imageNames[i-minw] += str(id) + ";"
-				# save the originals to a temp directory
-				scaledOrig = ImagePlus(None, ScaleImageToSize(scale, majorWidth, majorHeight))
-				SaveToZip(zf, scaledOrig, baseDir, counter)
-				counter += 1
-	zf.close()
-	# save the stacks
-	for i in range(minw, maxw+1):
-		impScaled = ImagePlus(str(minw) + "_" + str(int(round(i/aspectRatio, 0))), stackScaled[i-minw])
-		impScaled.show()
-		#print imageNames
-		impScaled.setProperty('Info', imageNames[i-minw][:-1])
-		fs = FileSaver(impScaled)
-		filepath = baseDir + "/" + str(i) + "_" + str(int(round(i/aspectRatio, 0))) + ".tif"
-		IJ.log("Saving output stack" + str(filepath))
-		fs.saveAsTiffStack(filepath)
-		#IJ.save(impScaled, filepath);
-		IJ.log("Done")
+def PrepareDatabase(minw, maxw, baseDir, aspectRatio):
+	IJ.log(CoverMakerIndex.build(File(baseDir), minw, maxw, aspectRatio, Prefs.getThreads()))
 
 
 
@@ -158,8 +83,6 @@ def DialogGenerate(imageBaseDir, summary):
 	dpi = 300
 	defaultAspectRatio = 1.33
 	defaultTileWidth = 15
-	defaultOriginalWidth = 150
-	defaultOriginalHeight = 113
 	defaultTileHeight = round(defaultTileWidth/defaultAspectRatio)
 
 	gd = GenericDialogPlus("Cover Maker")
@@ -167,8 +90,6 @@ def DialogGenerate(imageBaseDir, summary):
 	gd.addDirectoryField("Select base directory containing images", imageBaseDir, 20)
 	gd.addMessage(summary)
 	gd.addNumericField("Aspect ratio", defaultAspectRatio, 2)
-	gd.addNumericField("Original width", defaultOriginalWidth, 0)
-	gd.addNumericField("Original height", defaultOriginalHeight, 0)
 	gd.addNumericField("minimal tile width", defaultTileWidth, 0)
 	gd.addNumericField("maximal tile width", defaultTileWidth, 0)
 	gd.addNumericField("minimal tile height", defaultTileHeight, 0)
@@ -177,10 +98,10 @@ def DialogGenerate(imageBaseDir, summary):
 	fields = gd.getNumericFields()
 
 	aspRatio = fields.get(0)
-	minw = fields.get(3)
-	maxw = fields.get(4)
-	minh = fields.get(5)
-	maxh = fields.get(6)
+	minw = fields.get(1)
+	maxw = fields.get(2)
+	minh = fields.get(3)
+	maxh = fields.get(4)
 
 	# resolution and size listener
 	textListener = RatioToDim(aspRatio, minw, maxw, minh, maxh)
@@ -195,17 +116,15 @@ def DialogGenerate(imageBaseDir, summary):
 		return
 	imageBaseDir = gd.getNextString()
 	aspectRatio = gd.getNextNumber()
-	majorWidth = gd.getNextNumber()
-	majorHeight = gd.getNextNumber()
 	mintilewidth = gd.getNextNumber()
 	maxtilewidth = gd.getNextNumber()
 
-	return int(mintilewidth), int(maxtilewidth), imageBaseDir, float(aspectRatio), int(majorWidth), int(majorHeight)
+	return int(mintilewidth), int(maxtilewidth), imageBaseDir, float(aspectRatio)
 
 imageBaseDir = ''
 summary = ''
 
 #imageBaseDir = DialogAnalyze()
 #summary = DirList(imageBaseDir)
-(minw, maxw, imageBaseDir, aspectRatio, majorWidth, majorHeight) = DialogGenerate(imageBaseDir, summary)
-PrepareDatabase(minw, maxw, imageBaseDir, aspectRatio, majorWidth, majorHeight)
+(minw, maxw, imageBaseDir, aspectRatio) = DialogGenerate(imageBaseDir, summary)
+PrepareDatabase(minw, maxw, imageBaseDir, aspectRatio)
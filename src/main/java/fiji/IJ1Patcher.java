@@ -1,6 +1,7 @@
 package fiji;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
@@ -33,7 +34,7 @@ public void run() {
 		try {
 			String ijDirProperty = System.getProperty("imagej.dir");
 			if (ijDirProperty == null) ijDirProperty = System.getProperty("ij.dir");
-			final File jars = ijDirProperty == null ? null : new File(ijDirProperty, "jars");
+			jars = ijDirProperty == null ? null : new File(ijDirProperty, "jars");
 			if (jars == null || FileUtils.getAllVersions(jars, "imagej-legacy.jar").length > 0) {
 				LegacyInjector.preinit();
 				ij1PatcherFound = true;
@@ -41,7 +42,7 @@ public void run() {
 			else if (FileUtils.getAllVersions(jars, "ij-legacy.jar").length > 0) try {
 				Thread.currentThread().setContextClassLoader(
 						getClass().getClassLoader());
-				fallBackToPreviousLegacyEnvironment(ClassPool.getDefault());
+				fallBackToPreviousLegacyEnvironment();
 			}
 			catch (Throwable t) {
 				t.printStackTrace();
@@ -60,33 +61,32 @@ private void fallBackToPreviousPatcher() {
 		try {
 			Thread.currentThread().setContextClassLoader(
 					getClass().getClassLoader());
-			final ClassPool pool = ClassPool.getDefault();
 
 			try {
-				fallBackToPreviousLegacyEnvironment(pool);
+				fallBackToPreviousLegacyEnvironment();
 				return;
 			} catch (Throwable t) {
 				t.printStackTrace();
 				// ignore; fall back to previous patching method
 			}
 
-			CtClass clazz = pool.makeClass("fiji.$TransientFijiEditor");
-			clazz.addInterface(pool
-					.get("imagej.legacy.LegacyExtensions$LegacyEditorPlugin"));
-			clazz.addConstructor(CtNewConstructor.make(new CtClass[0],
-					new CtClass[0], clazz));
-			clazz.addMethod(CtNewMethod.make(
-					"public boolean open(java.io.File path) {"
-							+ "  return fiji.FijiTools.openFijiEditor(path);"
-							+ "}", clazz));
-			clazz.addMethod(CtNewMethod
-					.make("public boolean create(java.lang.String title, java.lang.String body) {"
-							+ "  return fiji.FijiTools.openFijiEditor(title, body);"
-							+ "}", clazz));
-			clazz.toClass();
+			defineClass("fiji.$TransientFijiEditor", editorOpen + editorCreate,
+				new ClassMaker() {
+					@Override
+					public CtClass make(final ClassPool pool, final String name)
+							throws NotFoundException, CannotCompileException {
+						final CtClass clazz = pool.makeClass(name);
+						clazz.addInterface(pool
+								.get("imagej.legacy.LegacyExtensions$LegacyEditorPlugin"));
+						clazz.addConstructor(CtNewConstructor.make(new CtClass[0],
+								new CtClass[0], clazz));
+						clazz.addMethod(CtNewMethod.make(editorOpen, clazz));
+						clazz.addMethod(CtNewMethod.make(editorCreate, clazz));
+						return clazz;
+					}
+				});
 
 			compileAndRun(
-					pool,
 					"imagej.legacy.LegacyExtensions.setAppName(\"(Fiji Is Just) ImageJ\");"
 							+ "imagej.legacy.LegacyExtensions.setIcon(new java.io.File(\""
 							+ AppUtils.getBaseDirectory(Main.class)
@@ -110,11 +110,10 @@ private void fallBackToPreviousPatcher() {
 		}
 	}
 
-	private void fallBackToPreviousLegacyEnvironment(final ClassPool pool)
+	private void fallBackToPreviousLegacyEnvironment()
 			throws NotFoundException, CannotCompileException,
 			InstantiationException, IllegalAccessException {
 		compileAndRun(
-				pool,
 				"imagej.patcher.LegacyInjector.preinit();"
 						// need to have a matching legacy service
 						+ "new imagej.patcher.LegacyEnvironment(getClass().getClassLoader(),"
@@ -136,17 +135,76 @@ static void fallBackToPreviousLegacyEnvironmentMain(final String... args)
 		main.invoke(patched, (Object) args);
 	}
 
+	private final static String editorOpen =
+			"public boolean open(java.io.File path) {"
+			+ "  return fiji.FijiTools.openFijiEditor(path);"
+			+ "}";
+	private final static String editorCreate =
+			"public boolean create(java.lang.String title, java.lang.String body) {"
+			+ "  return fiji.FijiTools.openFijiEditor(title, body);"
+			+ "}";
+
 	private int counter = 1;
+	private File jars;
+	private PatchedClassCache cache;
+	private boolean cacheCreated;
+	private ClassPool pool;
 
-	private void compileAndRun(final ClassPool pool, final String code)
+	private void compileAndRun(final String code)
 			throws NotFoundException, CannotCompileException,
 			InstantiationException, IllegalAccessException {
-		CtClass clazz;
-		clazz = pool.makeClass("fiji.$TransientFijiPatcher" + counter++);
-		clazz.addInterface(pool.get("java.lang.Runnable"));
-		clazz.addMethod(CtNewMethod.make("public void run() {" + code + "}",
-				clazz));
-		Runnable run = (Runnable) clazz.toClass().newInstance();
+		final String body = "public void run() {" + code + "}";
+		Class<?> clazz = defineClass("fiji.$TransientFijiPatcher" + counter++,
+			body, new ClassMaker() {
+				@Override
+				public CtClass make(final ClassPool pool, final String name)
+						throws NotFoundException, CannotCompileException {
+					final CtClass clazz = pool.makeClass(name);
+					clazz.addInterface(pool.get("java.lang.Runnable"));
+					clazz.addMethod(CtNewMethod.make(body, clazz));
+					return clazz;
+				}
+			});
+		Runnable run = (Runnable) clazz.newInstance();
 		run.run();
 	}
+
+	private interface ClassMaker {
+		CtClass make(ClassPool pool, String name)
+				throws NotFoundException, CannotCompileException;
+	}
+
+	/**
+	 * Defines a generated class, preferably from the {@link PatchedClassCache}.
+	 * <p>
+	 * The {@link ClassPool} is only initialized when the class was not cached
+	 * yet.
+	 * </p>
+	 */
+	private Class<?> defineClass(final String name, final String source,
+			final ClassMaker maker) throws NotFoundException,
+			CannotCompileException {
+		final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		// only the fallbacks get here; LegacyInjector.preinit() needs no cache
+		if (!cacheCreated) {
+			cache = PatchedClassCache.create(jars);
+			cacheCreated = true;
+		}
+		final byte[] cached = cache == null ? null : cache.get(name, source);
+		if (cached != null) try {
+			return PatchedClassCache.define(loader, name, cached);
+		} catch (Throwable t) {
+			// ignore; regenerate the class
+		}
+
+		if (pool == null)
+			pool = ClassPool.getDefault();
+		final CtClass clazz = maker.make(pool, name);
+		if (cache != null) try {
+			cache.put(name, source, clazz.toBytecode());
+		} catch (IOException e) {
+			// ignore: the cache is only an optimization
+		}
+		return clazz.toClass();
+	}
 }
@@ -0,0 +1,137 @@
+package fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.scijava.util.DigestUtils;
+import org.scijava.util.FileUtils;
+
+/**
+ * On-disk cache for the classes {@link IJ1Patcher} generates with Javassist.
+ * <p>
+ * The generated bytecode only depends on the source snippet it was compiled
+ * from and on the ImageJ 1.x / legacy jars it was compiled against. Therefore,
+ * the cache lives in a subdirectory named after the names, sizes and
+ * modification times of those jars (reading them in full to checksum them
+ * would cost more than it saves), and each class file is named after its
+ * class name and the checksum of its source. A warm start can then define
+ * the classes directly, without initializing a {@link javassist.ClassPool}.
+ * </p>
+ * <p>
+ * The cache directory defaults to {@code ~/.imagej/cache/ij1-patcher/} and can
+ * be overridden via the {@code fiji.patcher.cache.dir} system property. Set
+ * that property to {@code false} to disable the cache.
+ * </p>
+ *
+ * @deprecated Use {@code net.imagej:ij1-patcher} instead.
+ */
+@Deprecated
+class PatchedClassCache {
+	private final static String[] keyJars = {
+		"ij.jar", "imagej-legacy.jar", "ij-legacy.jar"
+	};
+
+	private static Method defineClass;
+
+	private final File directory;
+
+	PatchedClassCache(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Creates the cache for the jars in the given directory.
+	 *
+	 * @param jars the {@code jars/} directory of the ImageJ installation
+	 * @return the cache, or null if caching is disabled or impossible
+	 */
+	static PatchedClassCache create(final File jars) {
+		String root = System.getProperty("fiji.patcher.cache.dir");
+		if ("false".equals(root) || jars == null || !jars.isDirectory())
+			return null;
+		if (root == null) {
+			final String home = System.getProperty("user.home");
+			if (home == null)
+				return null;
+			root = home + "/.imagej/cache/ij1-patcher";
+		}
+		final StringBuilder key = new StringBuilder();
+		for (final String jar : keyJars)
+			for (final File file : FileUtils.getAllVersions(jars, jar))
+				key.append(file.getName()).append('\t').append(file.length())
+					.append('\t').append(file.lastModified()).append('\n');
+		return new PatchedClassCache(new File(root, DigestUtils.bestHex(key
+			.toString())));
+	}
+
+	/**
+	 * Looks up the bytecode generated for a class.
+	 *
+	 * @param className the name of the generated class
+	 * @param source the source code the class was generated from
+	 * @return the bytecode, or null if it was not cached (yet)
+	 */
+	byte[] get(final String className, final String source) {
+		final File file = getFile(className, source);
+		if (!file.exists())
+			return null;
+		try {
+			return FileUtils.readFile(file);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the bytecode generated for a class.
+	 * <p>
+	 * The file is written to a temporary file first and then renamed, so that
+	 * concurrently starting instances never see a partially-written class.
+	 * </p>
+	 *
+	 * @param className the name of the generated class
+	 * @param source the source code the class was generated from
+	 * @param bytecode the generated bytecode
+	 */
+	void put(final String className, final String source,
+			final byte[] bytecode) {
+		final File file = getFile(className, source);
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				return;
+			final File tmp = File.createTempFile("class-", ".tmp", directory);
+			FileUtils.writeFile(tmp, bytecode);
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (final IOException e) {
+			// ignore: the cache is only an optimization
+		}
+	}
+
+	private File getFile(final String className, final String source) {
+		return new File(directory, className + "-"
+			+ DigestUtils.bestHex(source) + ".class");
+	}
+
+	/**
+	 * Defines a class in the given class loader, just like Javassist's
+	 * {@code CtClass#toClass()} would do.
+	 *
+	 * @param loader the class loader
+	 * @param className the name of the class
+	 * @param bytecode the bytecode
+	 * @return the class
+	 */
+	static Class<?> define(final ClassLoader loader, final String className,
+			final byte[] bytecode) throws Exception {
+		if (defineClass == null) {
+			final Method method = ClassLoader.class.getDeclaredMethod(
+				"defineClass", String.class, byte[].class, int.class, int.class);
+			method.setAccessible(true);
+			defineClass = method;
+		}
+		return (Class<?>)defineClass.invoke(loader, className, bytecode, 0,
+			bytecode.length);
+	}
+}
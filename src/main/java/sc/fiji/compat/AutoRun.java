@@ -0,0 +1,333 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.Macro;
+import ij.macro.Interpreter;
+import ij.plugin.Macro_Runner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the scripts in {@code plugins/Scripts/Plugins/AutoRun/} at startup.
+ * <p>
+ * This is the engine behind {@code macros/AutoRun/AutoRun_Scripts.ijm}. The
+ * scripts used to run one after the other, in alphabetical order; now they
+ * run concurrently (off the event dispatch thread), except where their header
+ * comments say otherwise. Macros are the exception: ImageJ 1.x' macro
+ * interpreter keeps global state, so they run one at a time (sharing a lock
+ * with the {@link BatchService}), while they may overlap with scripts in
+ * other languages:
+ * </p>
+ * <dl>
+ * <dt>{@code @autorun-after <script>[, <script>...]}</dt>
+ * <dd>run only after the given scripts (file names) finished successfully;
+ * unknown names are ignored, with a warning</dd>
+ * <dt>{@code @autorun-order <n>}</dt>
+ * <dd>run only after all scripts with a lower order (default: 0) finished
+ * successfully</dd>
+ * <dt>{@code @autorun-timeout <seconds>}</dt>
+ * <dd>give up on the script after that long (default:
+ * {@code fiji.autorun.timeout}, or 60), counted from when the script starts
+ * (i.e. not while a macro waits for its turn); scripts depending on it are
+ * skipped. Macros are aborted; scripts in other languages are interrupted,
+ * but may keep running if they ignore that.</dd>
+ * <dt>{@code @autorun-edt}</dt>
+ * <dd>run on the event dispatch thread; there is no timeout, as the event
+ * dispatch thread cannot be given up on</dd>
+ * </dl>
+ * <p>
+ * Invalid headers are ignored, with a warning. Should the dependencies be
+ * cyclic, all scripts run one after the other, in alphabetical order, as
+ * does setting the system property {@code fiji.autorun.parallel} to false.
+ * In debug mode, or if the system property {@code fiji.startup.timeline} is
+ * true, each script's duration is printed to {@code stderr}.
+ * </p>
+ */
+public class AutoRun {
+
+	private final static Pattern HEADER =
+		Pattern.compile("@autorun-(after|order|timeout|edt)\\b:?\\s*(.*)");
+
+	/** How many lines at the top of a script to search for headers. */
+	private final static int HEADER_LINES = 30;
+
+	private static class Script {
+		final File file;
+		final List<String> after = new ArrayList<String>();
+		int order;
+		long timeout = Long.getLong("fiji.autorun.timeout", 60) * 1000;
+		boolean onEDT;
+
+		Script(final File file) {
+			this.file = file;
+		}
+	}
+
+	private AutoRun() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Entry point for the macro's {@code call()}.
+	 *
+	 * @param directory the directory containing the scripts
+	 * @return the timeline
+	 */
+	public static String run(final String directory) {
+		final File[] files = new File(directory).listFiles();
+		if (files == null)
+			return "";
+		Arrays.sort(files);
+
+		final TreeMap<Integer, List<Script>> byOrder =
+			new TreeMap<Integer, List<Script>>();
+		final Set<String> known = new HashSet<String>();
+		for (final File file : files) {
+			if (!file.isFile() || file.getName().startsWith("."))
+				continue;
+			final Script script = parse(file);
+			if (!byOrder.containsKey(script.order))
+				byOrder.put(script.order, new ArrayList<Script>());
+			byOrder.get(script.order).add(script);
+			known.add(file.getName());
+		}
+		for (final List<Script> group : byOrder.values())
+			for (final Script script : group)
+				for (final Iterator<String> iter = script.after.iterator(); iter
+					.hasNext();)
+				{
+					final String name = iter.next();
+					if (!known.contains(name)) {
+						IJ.log("AutoRun: ignoring unknown script " + name + " in "
+							+ script.file.getName() + "'s @autorun-after");
+						iter.remove();
+					}
+				}
+
+		final boolean parallel = Boolean.parseBoolean(System.getProperty(
+			"fiji.autorun.parallel", "true"));
+		final ExecutorService watchdog = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "AutoRun script");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		StartupTasks tasks = schedule(byOrder, parallel, watchdog);
+		try {
+			try {
+				tasks.run();
+			} catch (IllegalArgumentException e) {
+				// cyclic dependencies
+				IJ.log("AutoRun: " + e.getMessage() +
+					"; running the scripts one after the other");
+				final TreeMap<Integer, List<Script>> sequential =
+					new TreeMap<Integer, List<Script>>();
+				sequential.put(0, new ArrayList<Script>());
+				for (final File file : files)
+					for (final List<Script> group : byOrder.values())
+						for (final Script script : group)
+							if (script.file == file) {
+								script.after.clear();
+								sequential.get(0).add(script);
+							}
+				tasks = schedule(sequential, false, watchdog);
+				tasks.run();
+			}
+		}
+		finally {
+			watchdog.shutdown();
+		}
+		final String timeline = tasks.getTimeline();
+		if (IJ.debugMode || Boolean.getBoolean("fiji.startup.timeline"))
+			System.err.print("AutoRun:\n" + timeline);
+		if (!tasks.succeeded())
+			IJ.log("AutoRun: not all scripts succeeded\n" + timeline);
+		return timeline;
+	}
+
+	/*
+	 * Declares one task per script; each script depends on the whole group
+	 * with the next lower order, and, if not parallel, on the previous script.
+	 */
+	private static StartupTasks schedule(
+			final TreeMap<Integer, List<Script>> byOrder, final boolean parallel,
+			final ExecutorService watchdog) {
+		final StartupTasks tasks = new StartupTasks("AutoRun");
+		List<String> previousGroup = new ArrayList<String>();
+		String previous = null;
+		for (final List<Script> group : byOrder.values()) {
+			final List<String> names = new ArrayList<String>();
+			for (final Script script : group) {
+				final List<String> dependencies = new ArrayList<String>(previousGroup);
+				for (final String name : script.after)
+					if (!dependencies.contains(name))
+						dependencies.add(name);
+				if (!parallel && previous != null && !dependencies.contains(previous))
+					dependencies.add(previous);
+				final String name = script.file.getName();
+				tasks.add(name, script.onEDT, wrap(script, watchdog),
+					dependencies.toArray(new String[dependencies.size()]));
+				names.add(name);
+				previous = name;
+			}
+			previousGroup = names;
+		}
+		return tasks;
+	}
+
+	/*
+	 * Runs the script in a separate thread so that the task can give up on it
+	 * after the timeout.
+	 */
+	private static Runnable wrap(final Script script,
+			final ExecutorService watchdog) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				final AtomicReference<Interpreter> interpreter =
+					new AtomicReference<Interpreter>();
+				final CountDownLatch started = new CountDownLatch(1);
+				if (script.onEDT) {
+					runScript(script.file, interpreter, started);
+					return;
+				}
+				final Future<?> future = watchdog.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							runScript(script.file, interpreter, started);
+						}
+						finally {
+							started.countDown();
+						}
+					}
+				});
+				try {
+					started.await();
+					future.get(script.timeout, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// Macro_Runner ignores interrupts; abort macros explicitly
+					final Interpreter macro = interpreter.get();
+					if (macro != null)
+						macro.abortMacro();
+					future.cancel(true);
+					throw new RuntimeException(script.file.getName() + " timed out after "
+						+ script.timeout + " ms");
+				} catch (InterruptedException e) {
+					future.cancel(true);
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		};
+	}
+
+	/*
+	 * Runs macros with an interpreter of our own, which can be aborted, one at
+	 * a time, and other scripts via the Macro_Runner, which picks the language
+	 * by the file extension. Counts down the latch when the script starts.
+	 */
+	private static void runScript(final File file,
+			final AtomicReference<Interpreter> interpreter,
+			final CountDownLatch started) {
+		final String name = file.getName();
+		if (!name.endsWith(".ijm") && !name.endsWith(".txt")) {
+			started.countDown();
+			final String result = new Macro_Runner().runMacroFile(file.getPath(),
+				null);
+			if ("[aborted]".equals(result))
+				throw new RuntimeException(name + " aborted");
+			return;
+		}
+		final String macro = IJ.openAsString(file.getPath());
+		if (macro == null || macro.startsWith("Error: "))
+			throw new RuntimeException("Could not read " + name);
+		final Interpreter macroInterpreter = new Interpreter();
+		interpreter.set(macroInterpreter);
+		synchronized (FijiTools.MACRO_LOCK) {
+			started.countDown();
+			try {
+				Macro_Runner.setFilePath(file.getPath());
+				macroInterpreter.run(macro, null);
+			} catch (RuntimeException e) {
+				if (Macro.MACRO_CANCELED.equals(e.getMessage()))
+					throw new RuntimeException(name + " aborted");
+				throw e;
+			}
+			if (macroInterpreter.wasError())
+				throw new RuntimeException(name + " aborted");
+		}
+	}
+
+	private static Script parse(final File file) {
+		final Script script = new Script(file);
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try {
+				for (int i = 0; i < HEADER_LINES; i++) {
+					final String line = reader.readLine();
+					if (line == null)
+						break;
+					final Matcher matcher = HEADER.matcher(line);
+					if (!matcher.find())
+						continue;
+					final String key = matcher.group(1);
+					final String value = matcher.group(2).replaceAll("\\s*(\\*/)?$", "");
+					if (key.equals("after")) {
+						for (final String name : value.split("[,\\s]+"))
+							if (!name.equals(""))
+								script.after.add(name);
+					}
+					else if (key.equals("order")) try {
+						script.order = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						IJ.log("AutoRun: ignoring invalid @autorun-order in " + file +
+							": " + value);
+					}
+					else if (key.equals("timeout")) try {
+						script.timeout = (long)(Double.parseDouble(value) * 1000);
+					} catch (NumberFormatException e) {
+						IJ.log("AutoRun: ignoring invalid @autorun-timeout in " + file +
+							": " + value);
+					}
+					else if (key.equals("edt"))
+						script.onEDT = true;
+				}
+			}
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			IJ.log("AutoRun: could not read " + file + ": " + e.getMessage());
+		}
+		return script;
+	}
+}
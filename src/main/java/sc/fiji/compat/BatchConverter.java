@@ -0,0 +1,335 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.TiffDecoder;
+import ij.plugin.PlugIn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts all files of a directory to TIFF.
+ * <p>
+ * This is the engine behind {@code plugins/Macros/batch_convert_any_to_tif.txt}.
+ * Up to {@link Prefs#getThreads()} files are converted at the same time, as
+ * long as the estimated memory they need fits into half of the free heap. For
+ * TIFFs, that estimate is the decoded size according to the header, as the
+ * file size says little about compressed TIFFs. Files are written under a
+ * temporary name and renamed when complete, and every converted file is
+ * recorded in a checkpoint in the target directory. A second run (e.g. after
+ * a crash) therefore skips the files converted before, as well as the ones
+ * whose TIFF is newer than the source.
+ * </p>
+ */
+public class BatchConverter implements PlugIn {
+
+	private final static String CHECKPOINT = ".batch_convert_to_tif.done";
+
+	/** How much heap a non-TIFF image needs, relative to its file size. */
+	private final static int EXPANSION = 3;
+
+	/** How often to report the throughput, in milliseconds. */
+	private final static long REPORT_INTERVAL = 10000;
+
+	private final File source, target;
+	private final int threads;
+
+	private final AtomicInteger converted = new AtomicInteger(),
+			skipped = new AtomicInteger(), failed = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private long start, lastReport;
+	private int total;
+
+	public BatchConverter() {
+		this(null, null, Prefs.getThreads());
+	}
+
+	public BatchConverter(final File source, final File target,
+			final int threads) {
+		this.source = source;
+		this.target = target;
+		this.threads = Math.max(1, threads);
+	}
+
+	@Override
+	public void run(final String arg) {
+		final String source = IJ.getDirectory("Source Directory");
+		if (source == null)
+			return;
+		final String target = IJ.getDirectory("Target Directory");
+		if (target == null)
+			return;
+		IJ.log(convert(source, target));
+	}
+
+	/**
+	 * Entry point for the macro's {@code call()}.
+	 *
+	 * @return the summary
+	 */
+	public static String convert(final String source, final String target) {
+		try {
+			return new BatchConverter(new File(source), new File(target),
+				Prefs.getThreads()).convert();
+		} catch (IOException e) {
+			IJ.handleException(e);
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Converts the files that are not converted yet.
+	 *
+	 * @return the summary
+	 */
+	public String convert() throws IOException {
+		if (!source.isDirectory())
+			throw new IOException("Not a directory: " + source);
+		if (!target.isDirectory() && !target.mkdirs())
+			throw new IOException("Could not make directory " + target);
+
+		final Map<String, String> done = readCheckpoint();
+		final List<Path> todo = new ArrayList<Path>();
+		final DirectoryStream<Path> stream =
+			Files.newDirectoryStream(source.toPath());
+		try {
+			for (final Path path : stream) {
+				final BasicFileAttributes attributes =
+					Files.readAttributes(path, BasicFileAttributes.class);
+				final String name = path.getFileName().toString();
+				if (!attributes.isRegularFile() || name.startsWith("."))
+					continue;
+				if (getStamp(attributes).equals(done.get(name)) ||
+						isUpToDate(attributes, getOutput(name)))
+					skipped.incrementAndGet();
+				else
+					todo.add(path);
+			}
+		}
+		finally {
+			stream.close();
+		}
+
+		total = todo.size();
+		start = lastReport = System.currentTimeMillis();
+		final long budget = getMemoryBudget();
+		final Semaphore memory = new Semaphore((int)budget);
+		final PrintWriter checkpoint = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(new File(target, CHECKPOINT), true), "UTF-8"));
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final Path path : todo)
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						convert(path, memory, budget, checkpoint);
+					}
+				}));
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+				report(false);
+			// errors such as OutOfMemoryError end up in the futures
+			for (int i = 0; i < futures.size(); i++) try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				fail(todo.get(i).getFileName().toString(), e.getCause().toString());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			checkpoint.close();
+		}
+		IJ.showProgress(1, 1);
+		return report(true);
+	}
+
+	private void convert(final Path path, final Semaphore memory,
+			final long budget, final PrintWriter checkpoint) {
+		final String name = path.getFileName().toString();
+		final File file = path.toFile();
+		final long length = file.length();
+		// a file larger than the budget is converted alone
+		final int permits = (int)Math.max(1, Math.min(budget,
+			getFootprint(file) >> 20));
+		try {
+			memory.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try {
+			final BasicFileAttributes attributes =
+				Files.readAttributes(path, BasicFileAttributes.class);
+			final ImagePlus image = IJ.openImage(file.getPath());
+			if (image == null) {
+				fail(name, "could not open");
+				return;
+			}
+			final File output = getOutput(name);
+			final File part = new File(target, "." + output.getName() + ".part");
+			try {
+				if (!new FileSaver(image).saveAsTiff(part.getPath())) {
+					fail(name, "could not save");
+					return;
+				}
+			}
+			finally {
+				image.flush();
+			}
+			move(part, output);
+			synchronized (checkpoint) {
+				checkpoint.println(name + "\t" + getStamp(attributes));
+				checkpoint.flush();
+			}
+			converted.incrementAndGet();
+			bytes.addAndGet(length);
+		} catch (IOException e) {
+			fail(name, e.getMessage());
+		} catch (RuntimeException e) {
+			fail(name, e.toString());
+		}
+		finally {
+			memory.release(permits);
+		}
+	}
+
+	/*
+	 * Estimates the heap needed to open the file: width x height x planes x
+	 * bytes per pixel for TIFFs, a multiple of the file size otherwise.
+	 */
+	private static long getFootprint(final File file) {
+		final String name = file.getName().toLowerCase();
+		if (name.endsWith(".tif") || name.endsWith(".tiff")) try {
+			final FileInfo[] info = new TiffDecoder(file.getParent() +
+				File.separator, file.getName()).getTiffInfo();
+			if (info != null && info.length > 0) {
+				long size = 0;
+				for (final FileInfo fi : info)
+					size += (long)fi.width * fi.height * Math.max(1, fi.nImages) *
+						fi.getBytesPerPixel();
+				if (size > 0)
+					return size;
+			}
+		} catch (IOException e) {
+			// fall back to the file size
+		} catch (RuntimeException e) {
+			// fall back to the file size
+		}
+		return EXPANSION * file.length();
+	}
+
+	private File getOutput(final String name) {
+		return new File(target, name + ".tif");
+	}
+
+	private void fail(final String name, final String reason) {
+		failed.incrementAndGet();
+		IJ.log("Could not convert " + name + ": " + reason);
+	}
+
+	private synchronized String report(final boolean force) {
+		final long now = System.currentTimeMillis();
+		final int count = converted.get() + failed.get();
+		IJ.showProgress(count, Math.max(total, 1));
+		if (!force && now - lastReport < REPORT_INTERVAL)
+			return null;
+		lastReport = now;
+		final double seconds = Math.max(now - start, 1) / 1000.0;
+		final double rate = converted.get() / seconds;
+		String report = String.format("Converted %d of %d files (%d skipped, %d failed)"
+			+ " in %.1fs: %.1f files/s, %.1f MB/s", converted.get(), total,
+			skipped.get(), failed.get(), seconds, rate, bytes.get() / seconds / (1 << 20));
+		if (!force && rate > 0)
+			report += String.format(", %.0fs left", (total - count) / rate);
+		if (!force)
+			IJ.log(report);
+		return report;
+	}
+
+	/*
+	 * The files converted in previous runs, mapped to the size and
+	 * modification time their source had.
+	 */
+	private Map<String, String> readCheckpoint() throws IOException {
+		final Map<String, String> result = new HashMap<String, String>();
+		final File file = new File(target, CHECKPOINT);
+		if (!file.exists())
+			return result;
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try {
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null)
+					break;
+				final int tab = line.indexOf('\t');
+				if (tab > 0)
+					result.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	private static String getStamp(final BasicFileAttributes attributes) {
+		return attributes.size() + "\t" + attributes.lastModifiedTime().toMillis();
+	}
+
+	private static boolean isUpToDate(final BasicFileAttributes source,
+			final File output) {
+		return output.length() > 0 &&
+			output.lastModified() >= source.lastModifiedTime().toMillis();
+	}
+
+	/** @return half of the heap that is not in use, in megabytes */
+	private static long getMemoryBudget() {
+		final Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - runtime.totalMemory() +
+			runtime.freeMemory();
+		return Math.max(64, Math.min(Integer.MAX_VALUE, (free / 2) >> 20));
+	}
+
+	private static void move(final File source, final File target)
+			throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
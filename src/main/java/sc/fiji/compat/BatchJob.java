@@ -0,0 +1,94 @@
+package sc.fiji.compat;
+
+import java.io.File;
+
+/**
+ * A macro or script run by the {@link BatchService}, with its timings.
+ */
+public class BatchJob {
+
+	public enum Status {
+		QUEUED, RUNNING, SUCCEEDED, FAILED
+	}
+
+	private final long id;
+	private final File script;
+	private final String arg;
+	private final long queued;
+	private volatile long started, finished;
+	private volatile Status status = Status.QUEUED;
+	private volatile String output, error;
+
+	BatchJob(final long id, final File script, final String arg) {
+		this.id = id;
+		this.script = script;
+		this.arg = arg;
+		queued = System.currentTimeMillis();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public File getScript() {
+		return script;
+	}
+
+	public String getArg() {
+		return arg;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/** @return what the macro returned, if anything */
+	public String getOutput() {
+		return output;
+	}
+
+	/** @return why the job failed, or null */
+	public String getError() {
+		return error;
+	}
+
+	/** @return how long the job waited for a worker, in milliseconds */
+	public long getQueuedMillis() {
+		return (started > 0 ? started : System.currentTimeMillis()) - queued;
+	}
+
+	/** @return how long the job ran (so far), in milliseconds */
+	public long getRunMillis() {
+		if (started == 0)
+			return 0;
+		return (finished > 0 ? finished : System.currentTimeMillis()) - started;
+	}
+
+	void started() {
+		started = System.currentTimeMillis();
+		status = Status.RUNNING;
+	}
+
+	void succeeded(final String output) {
+		this.output = output;
+		finished = System.currentTimeMillis();
+		status = Status.SUCCEEDED;
+	}
+
+	void failed(final String error) {
+		this.error = error;
+		finished = System.currentTimeMillis();
+		status = Status.FAILED;
+	}
+
+	/**
+	 * @return the id, status, milliseconds queued, milliseconds running and
+	 *         script, plus the error if any, separated by tabs
+	 */
+	@Override
+	public String toString() {
+		return id + "\t" + status + "\t" + getQueuedMillis() + "\t"
+			+ getRunMillis() + "\t" + script
+			+ (error == null ? "" : "\t" + error.replace('\t', ' ').replace('\n', ' '));
+	}
+}
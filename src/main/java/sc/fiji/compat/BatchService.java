@@ -0,0 +1,78 @@
+package sc.fiji.compat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.scijava.service.SciJavaService;
+
+/**
+ * Runs macros and scripts in a long-running, headless Fiji.
+ * <p>
+ * Starting Fiji for every job of a cluster run costs the JVM startup and the
+ * patching of ImageJ 1.x each time. This service keeps one Fiji running and
+ * runs the jobs concurrently in a pool of workers instead. Jobs are submitted
+ * via {@link #submit(File, String)}, via a local socket (see
+ * {@link #listen(int)}) or by dropping files into a queue directory (see
+ * {@link #watch(File)}). When the {@code fiji.batch.port} or
+ * {@code fiji.batch.queue} system properties are set, the service starts
+ * listening or watching right away.
+ * </p>
+ */
+public interface BatchService extends SciJavaService {
+
+	/**
+	 * Queues a macro ({@code .ijm} or {@code .txt}) or script.
+	 *
+	 * @param script the macro or script file
+	 * @param arg the argument ({@code getArgument()} for macros, the input
+	 *          named {@code arg} for scripts), or null
+	 * @return the job, once it finished
+	 */
+	Future<BatchJob> submit(File script, String arg);
+
+	/**
+	 * Accepts jobs on a loopback socket.
+	 * <p>
+	 * As any local user can connect to the socket, a random token is written
+	 * to a file that only the current user can read (see
+	 * {@link #getTokenFile(int)}); the first line clients send must be that
+	 * token. Then, clients send one job per line: the path of the script,
+	 * optionally followed by a tab and the argument. For every finished job, a
+	 * line with the tab-separated fields of {@link BatchJob#toString()} is sent
+	 * back.
+	 * </p>
+	 *
+	 * @param port the port, or 0 to pick a free one
+	 * @return the port
+	 */
+	int listen(int port) throws IOException;
+
+	/**
+	 * Returns the file holding the token clients of {@link #listen(int)} need.
+	 *
+	 * @param port the port returned by {@link #listen(int)}
+	 */
+	File getTokenFile(int port);
+
+	/**
+	 * Runs the files dropped into a directory.
+	 * <p>
+	 * Every new file (ignoring names starting with a dot or ending in
+	 * {@code .part}, so that clients can write them and rename them when
+	 * done) is moved into the {@code running/} subdirectory, then into
+	 * {@code done/} or {@code failed/}. The timings are appended to
+	 * {@code timings.tsv}.
+	 * </p>
+	 *
+	 * @param directory the queue directory
+	 */
+	void watch(File directory) throws IOException;
+
+	/**
+	 * Returns the (most recent) jobs finished so far, in order of completion.
+	 */
+	List<BatchJob> getFinishedJobs();
+
+}
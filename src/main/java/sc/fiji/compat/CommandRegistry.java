@@ -0,0 +1,565 @@
+package sc.fiji.compat;
+
+import ij.Menus;
+
+import java.lang.reflect.Field;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A view of ImageJ 1.x' command table ({@link Menus#getCommands()}) that can
+ * be read without locking.
+ * <p>
+ * The command table is a {@link Hashtable}, i.e. every lookup takes its lock,
+ * and many threads of a headless batch run looking up commands all the time
+ * contend for it. This class mirrors the table in a concurrent map instead;
+ * lookups, including misses, do not lock as long as the mirror is current.
+ * </p>
+ * <p>
+ * To tell whether it is current, ImageJ 1.x' table is replaced by a subclass
+ * counting its modifications, whoever makes them: all of {@link Hashtable}'s
+ * mutators are overridden, and its collection views, their iterators and
+ * entries are wrapped. Every lookup compares that count with the mirror's. Modifications made via {@link #put} and
+ * {@link #remove} are applied to the mirror as well, any others (e.g. by
+ * ImageJ 1.x itself, or when it rebuilt the table on {@code Help>Refresh
+ * Menus}) make the next lookup copy the table. Modifications made via
+ * {@link #batch(Runnable)} happen while holding the table's lock and are
+ * published at the end, so that readers of either see all of them or none.
+ * Should the table not be replaceable, lookups go to the table itself.
+ * </p>
+ */
+public final class CommandRegistry {
+
+	private CommandRegistry() {
+		// prevent instantiation of utility class
+	}
+
+	/** ImageJ 1.x' command table, counting its modifications. */
+	private static class Table extends Hashtable<String, String> {
+		private static final long serialVersionUID = 1L;
+
+		private volatile long modifications;
+		/** The number of batches in progress. */
+		private volatile int batches;
+
+		private Table(final Map<?, ?> commands) {
+			super(2 * commands.size() + 11);
+			for (final Map.Entry<?, ?> entry : commands.entrySet())
+				super.put(entry.getKey().toString(), entry.getValue().toString());
+		}
+
+		@Override
+		public synchronized String put(final String key, final String value) {
+			final String previous = super.put(key, value);
+			modifications++;
+			return previous;
+		}
+
+		@Override
+		public synchronized String remove(final Object key) {
+			final String previous = super.remove(key);
+			if (previous != null)
+				modifications++;
+			return previous;
+		}
+
+		@Override
+		public synchronized void clear() {
+			super.clear();
+			modifications++;
+		}
+
+		@Override
+		public synchronized boolean remove(final Object key, final Object value) {
+			final boolean removed = super.remove(key, value);
+			if (removed)
+				modifications++;
+			return removed;
+		}
+
+		@Override
+		public synchronized String putIfAbsent(final String key,
+				final String value) {
+			final String previous = super.putIfAbsent(key, value);
+			if (previous == null)
+				modifications++;
+			return previous;
+		}
+
+		@Override
+		public synchronized String replace(final String key, final String value) {
+			final String previous = super.replace(key, value);
+			if (previous != null)
+				modifications++;
+			return previous;
+		}
+
+		@Override
+		public synchronized boolean replace(final String key,
+				final String oldValue, final String newValue) {
+			final boolean replaced = super.replace(key, oldValue, newValue);
+			if (replaced)
+				modifications++;
+			return replaced;
+		}
+
+		@Override
+		public synchronized void replaceAll(
+				final BiFunction<? super String, ? super String, ? extends String> function) {
+			try {
+				super.replaceAll(function);
+			}
+			finally {
+				modifications++;
+			}
+		}
+
+		@Override
+		public synchronized String computeIfAbsent(final String key,
+				final Function<? super String, ? extends String> function) {
+			try {
+				return super.computeIfAbsent(key, function);
+			}
+			finally {
+				modifications++;
+			}
+		}
+
+		@Override
+		public synchronized String computeIfPresent(final String key,
+				final BiFunction<? super String, ? super String, ? extends String> function) {
+			try {
+				return super.computeIfPresent(key, function);
+			}
+			finally {
+				modifications++;
+			}
+		}
+
+		@Override
+		public synchronized String compute(final String key,
+				final BiFunction<? super String, ? super String, ? extends String> function) {
+			try {
+				return super.compute(key, function);
+			}
+			finally {
+				modifications++;
+			}
+		}
+
+		@Override
+		public synchronized String merge(final String key, final String value,
+				final BiFunction<? super String, ? super String, ? extends String> function) {
+			try {
+				return super.merge(key, value, function);
+			}
+			finally {
+				modifications++;
+			}
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return new CountingSet<String>(super.keySet(), false);
+		}
+
+		@Override
+		public Collection<String> values() {
+			return new CountingCollection<String>(super.values(), false);
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new CountingSet<Map.Entry<String, String>>(super.entrySet(),
+				true);
+		}
+
+		private synchronized void modified() {
+			modifications++;
+		}
+
+		/*
+		 * A view that counts removals, including those via its iterators, and,
+		 * for the entry set, Map.Entry#setValue calls.
+		 */
+		private class CountingCollection<T> extends AbstractCollection<T> {
+			private final Collection<T> view;
+			private final boolean entries;
+
+			private CountingCollection(final Collection<T> view,
+					final boolean entries) {
+				this.view = view;
+				this.entries = entries;
+			}
+
+			@Override
+			public int size() {
+				return view.size();
+			}
+
+			@Override
+			public boolean contains(final Object o) {
+				return view.contains(o);
+			}
+
+			@Override
+			public boolean remove(final Object o) {
+				try {
+					return view.remove(o);
+				}
+				finally {
+					modified();
+				}
+			}
+
+			@Override
+			public void clear() {
+				try {
+					view.clear();
+				}
+				finally {
+					modified();
+				}
+			}
+
+			@Override
+			public Iterator<T> iterator() {
+				final Iterator<T> iterator = view.iterator();
+				return new Iterator<T>() {
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					@SuppressWarnings("unchecked")
+					public T next() {
+						final T next = iterator.next();
+						return entries ? (T)new CountingEntry(
+							(Map.Entry<String, String>)next) : next;
+					}
+
+					@Override
+					public void remove() {
+						try {
+							iterator.remove();
+						}
+						finally {
+							modified();
+						}
+					}
+				};
+			}
+		}
+
+		private class CountingSet<T> extends CountingCollection<T> implements
+			Set<T>
+		{
+			private CountingSet(final Set<T> view, final boolean entries) {
+				super(view, entries);
+			}
+
+			@Override
+			public boolean equals(final Object o) {
+				if (o == this)
+					return true;
+				if (!(o instanceof Set))
+					return false;
+				final Set<?> other = (Set<?>)o;
+				return other.size() == size() && containsAll(other);
+			}
+
+			@Override
+			public int hashCode() {
+				int hash = 0;
+				for (final T element : this)
+					hash += element == null ? 0 : element.hashCode();
+				return hash;
+			}
+		}
+
+		private class CountingEntry implements Map.Entry<String, String> {
+			private final Map.Entry<String, String> entry;
+
+			private CountingEntry(final Map.Entry<String, String> entry) {
+				this.entry = entry;
+			}
+
+			@Override
+			public String getKey() {
+				return entry.getKey();
+			}
+
+			@Override
+			public String getValue() {
+				return entry.getValue();
+			}
+
+			@Override
+			public String setValue(final String value) {
+				try {
+					return entry.setValue(value);
+				}
+				finally {
+					modified();
+				}
+			}
+
+			@Override
+			public boolean equals(final Object o) {
+				return entry.equals(o instanceof CountingEntry ?
+					((CountingEntry)o).entry : o);
+			}
+
+			@Override
+			public int hashCode() {
+				return entry.hashCode();
+			}
+
+			@Override
+			public String toString() {
+				return entry.toString();
+			}
+		}
+	}
+
+	private static class Snapshot {
+		final Table source;
+		final long modifications;
+		final Map<String, String> commands;
+		final long version;
+
+		Snapshot(final Table source, final long modifications,
+				final Map<String, String> commands, final long version) {
+			this.source = source;
+			this.modifications = modifications;
+			this.commands = commands;
+			this.version = version;
+		}
+	}
+
+	private static final Field TABLE_FIELD = getTableField();
+
+	private static volatile Snapshot snapshot = new Snapshot(null, 0,
+		new ConcurrentHashMap<String, String>(), 0);
+
+	private static final ThreadLocal<int[]> batchDepth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Looks up the command associated with a menu label.
+	 *
+	 * @param label the menu label
+	 * @return the command (as per the plugins.config), or null
+	 */
+	public static String get(final String label) {
+		final Hashtable<?, ?> table = getTable();
+		if (table == null)
+			return null;
+		if (!(table instanceof Table) || batchDepth.get()[0] > 0) {
+			// not mirrored, or the mirror does not reflect this thread's batch yet
+			final Object command = table.get(label);
+			return command == null ? null : command.toString();
+		}
+		return current((Table)table).commands.get(label);
+	}
+
+	/**
+	 * Determines whether a command is associated with the given menu label.
+	 */
+	public static boolean containsKey(final String label) {
+		return get(label) != null;
+	}
+
+	/**
+	 * Associates a command with a menu label.
+	 *
+	 * @param label the menu label
+	 * @param command the command (as per the plugins.config)
+	 * @return the previously associated command, or null
+	 */
+	public static String put(final String label, final String command) {
+		final Hashtable<String, String> table = getTable();
+		if (table == null)
+			return null;
+		synchronized (table) {
+			if (!(table instanceof Table) || batchDepth.get()[0] > 0)
+				return table.put(label, command);
+			final Table mirrored = (Table)table;
+			final Snapshot current = snapshot;
+			final boolean upToDate = isUpToDate(current, mirrored);
+			final String previous = table.put(label, command);
+			if (upToDate) {
+				current.commands.put(label, command);
+				publish(mirrored, current.commands);
+			}
+			return previous;
+		}
+	}
+
+	/**
+	 * Removes the command associated with a menu label.
+	 *
+	 * @return the previously associated command, or null
+	 */
+	public static String remove(final String label) {
+		final Hashtable<String, String> table = getTable();
+		if (table == null)
+			return null;
+		synchronized (table) {
+			if (!(table instanceof Table) || batchDepth.get()[0] > 0)
+				return table.remove(label);
+			final Table mirrored = (Table)table;
+			final Snapshot current = snapshot;
+			final boolean upToDate = isUpToDate(current, mirrored);
+			final String previous = table.remove(label);
+			if (upToDate && previous != null) {
+				current.commands.remove(label);
+				publish(mirrored, current.commands);
+			}
+			return previous;
+		}
+	}
+
+	/**
+	 * Runs a series of modifications atomically.
+	 * <p>
+	 * While the modifications run, the command table is locked, and the
+	 * mirror is updated only after the last modification; lookups by other
+	 * threads see the state before the batch until then. Batches may be
+	 * nested. As the table is locked, the modifications should do nothing
+	 * else, in particular nothing waiting for other threads, such as the
+	 * event dispatch thread.
+	 * </p>
+	 *
+	 * @param modifications the modifications
+	 */
+	public static void batch(final Runnable modifications) {
+		final Hashtable<String, String> table = getTable();
+		if (table == null) {
+			modifications.run();
+			return;
+		}
+		final Table mirrored = table instanceof Table ? (Table)table : null;
+		final int[] depth = batchDepth.get();
+		synchronized (table) {
+			if (depth[0]++ == 0 && mirrored != null)
+				mirrored.batches++;
+			try {
+				modifications.run();
+			}
+			finally {
+				if (--depth[0] == 0 && mirrored != null) {
+					copy(mirrored);
+					mirrored.batches--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the version of the mirror; it is incremented with every change.
+	 */
+	public static long getVersion() {
+		final Hashtable<?, ?> table = getTable();
+		if (table instanceof Table)
+			return current((Table)table).version;
+		return snapshot.version;
+	}
+
+	/**
+	 * Re-reads ImageJ 1.x' command table, e.g. after it was rebuilt.
+	 */
+	public static void refresh() {
+		final Hashtable<?, ?> table = getTable();
+		if (table instanceof Table)
+			synchronized (table) {
+				copy((Table)table);
+			}
+	}
+
+	private static boolean isUpToDate(final Snapshot current, final Table table) {
+		return current.source == table &&
+			current.modifications == table.modifications;
+	}
+
+	/*
+	 * Returns the mirror, copying the table if it was modified behind our back,
+	 * unless a batch is in progress, in which case the mirror still shows the
+	 * state before it.
+	 */
+	private static Snapshot current(final Table table) {
+		final Snapshot current = snapshot;
+		if (isUpToDate(current, table) ||
+				table.batches > 0 && current.source == table)
+			return current;
+		synchronized (table) {
+			if (isUpToDate(snapshot, table))
+				return snapshot; // another thread was faster
+			return copy(table);
+		}
+	}
+
+	/* Must be called while holding the table's lock. */
+	private static Snapshot copy(final Table table) {
+		final Map<String, String> commands =
+			new ConcurrentHashMap<String, String>(2 * table.size() + 1);
+		commands.putAll(table);
+		return publish(table, commands);
+	}
+
+	/* Must be called while holding the table's lock. */
+	private static synchronized Snapshot publish(final Table table,
+			final Map<String, String> commands) {
+		snapshot = new Snapshot(table, table.modifications, commands,
+			snapshot.version + 1);
+		return snapshot;
+	}
+
+	/*
+	 * Returns ImageJ 1.x' command table, replacing it by a Table first if
+	 * necessary (e.g. after it was rebuilt).
+	 */
+	@SuppressWarnings("unchecked")
+	private static Hashtable<String, String> getTable() {
+		final Hashtable<String, String> table = Menus.getCommands();
+		if (table == null || table instanceof Table || TABLE_FIELD == null)
+			return table;
+		// modifications of the old table wait until it is replaced
+		synchronized (table) {
+			synchronized (CommandRegistry.class) {
+				final Object installed = Menus.getCommands();
+				if (installed != table)
+					return (Hashtable<String, String>)installed;
+				final Table replacement = new Table(table);
+				try {
+					TABLE_FIELD.set(null, replacement);
+				} catch (final IllegalAccessException e) {
+					return table;
+				}
+				return replacement;
+			}
+		}
+	}
+
+	private static Field getTableField() {
+		try {
+			final Field field = Menus.class.getDeclaredField("pluginsTable");
+			field.setAccessible(true);
+			return field;
+		} catch (final Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes a mosaic of photos that looks like a template image.
+ * <p>
+ * This is the engine behind {@code plugins/Examples/CoverMaker/Cover_Maker.py}.
+ * As before, the template is split into tiles of the index' tile size, the
+ * tiles are visited in random order, and each gets the closest photo that
+ * was not used yet. The closest photo is looked up in the
+ * {@link CoverMakerIndex}'s tree rather than by comparing with every photo.
+ * Several tiles are looked up in parallel. A lookup whose photo was taken
+ * by a tile visited earlier is repeated, so the result is the same as when
+ * looking up one tile after the other.
+ * </p>
+ */
+public class CoverMaker {
+
+	private final CoverMakerIndex index;
+	private final int threads;
+	private final Random random;
+	private int columns, rows;
+
+	public CoverMaker(final CoverMakerIndex index, final int threads) {
+		this(index, threads, new Random());
+	}
+
+	public CoverMaker(final CoverMakerIndex index, final int threads,
+			final Random random) {
+		this.index = index;
+		this.threads = Math.max(1, threads);
+		this.random = random;
+	}
+
+	/** @return the number of tile columns of the last {@link #match} */
+	public int getColumns() {
+		return columns;
+	}
+
+	/** @return the number of tile rows of the last {@link #match} */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Assigns a photo to each tile of the template; the right and bottom
+	 * margins that do not make up a whole tile are ignored.
+	 *
+	 * @param template the template
+	 * @param preview an image of the template's size to draw the matched
+	 *          tiles into while matching, or null
+	 * @return the photos, by tile, column by column
+	 */
+	public int[] match(final ImageProcessor template, final ImagePlus preview)
+		throws InterruptedException, ExecutionException
+	{
+		final int width = index.getTileWidth(), height = index.getTileHeight();
+		final ColorProcessor ip = (ColorProcessor)(template instanceof ColorProcessor ?
+			template : template.convertToRGB());
+		columns = ip.getWidth() / width;
+		rows = ip.getHeight() / height;
+		final int count = columns * rows;
+		if (count > index.size())
+			throw new IllegalArgumentException("The template needs " + count +
+				" tiles, but the database has only " + index.size() + " photos");
+
+		final int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		for (int i = count - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+
+		final int[] result = new int[count];
+		final CoverMakerIndex.Usage usage = index.createUsage();
+		final int[] tilePixels = new int[width * height];
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final int batchSize = 4 * threads;
+			for (int start = 0; start < count; start += batchSize) {
+				final int end = Math.min(count, start + batchSize);
+				final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+				for (int i = start; i < end; i++) {
+					final int[] tile = getTile(ip, order[i], width, height);
+					futures.add(executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							return index.nearest(tile, usage);
+						}
+					}));
+				}
+				// the lookups must not see the usage change, so wait for all of them
+				final int[] found = new int[end - start];
+				for (int i = start; i < end; i++)
+					found[i - start] = futures.get(i - start).get();
+				// commit in order, repeating lookups that lost their photo
+				for (int i = start; i < end; i++) {
+					int photo = found[i - start];
+					if (usage.isUsed(photo))
+						photo = index.nearest(getTile(ip, order[i], width, height), usage);
+					usage.use(photo);
+					result[order[i]] = photo;
+					if (preview != null) {
+						index.getTile(photo, tilePixels);
+						final int x = order[i] / rows * width, y = order[i] % rows * height;
+						preview.getProcessor().insert(new ColorProcessor(width, height,
+							tilePixels), x, y);
+					}
+				}
+				if (preview != null)
+					preview.updateAndDraw();
+				IJ.showProgress(end, count);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		IJ.showProgress(1, 1);
+		return result;
+	}
+
+	/**
+	 * Renders the mosaic from the photos themselves.
+	 * <p>
+	 * The photos are read in parallel. A photo that cannot be read any longer
+	 * is replaced by its (upscaled) tile.
+	 * </p>
+	 *
+	 * @param photos the result of {@link #match}
+	 * @param width the approximate width of the result
+	 * @param height the approximate height of the result
+	 * @return the mosaic, rounded down to a multiple of the tile size
+	 */
+	public ImagePlus render(final int[] photos, final int width,
+			final int height) throws InterruptedException
+	{
+		final int tileWidth = Math.max(1, width / columns);
+		final int tileHeight = Math.max(1, height / rows);
+		final ColorProcessor output = new ColorProcessor(columns * tileWidth, rows *
+			tileHeight);
+		final AtomicInteger done = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < photos.length; i++) {
+				final int tile = i;
+				executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						final ImageProcessor scaled = readTile(photos[tile], tileWidth,
+							tileHeight);
+						synchronized (output) {
+							output.insert(scaled, tile / rows * tileWidth, tile % rows *
+								tileHeight);
+						}
+						IJ.showProgress(done.incrementAndGet(), photos.length);
+					}
+				});
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+				; // wait
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		IJ.showProgress(1, 1);
+		return new ImagePlus("hi res output", output);
+	}
+
+	private ImageProcessor readTile(final int photo, final int width,
+			final int height) {
+		try {
+			final BufferedImage image = CoverMakerIndex.readPhoto(new File(index
+				.getPath(photo)), 0, width, height);
+			return scale(new ColorProcessor(image), width, height);
+		} catch (final Throwable t) {
+			IJ.log("Could not read " + index.getPath(photo) + ": " + t);
+			final int[] pixels = new int[index.getTileWidth() * index.getTileHeight()];
+			index.getTile(photo, pixels);
+			return scale(new ColorProcessor(index.getTileWidth(), index
+				.getTileHeight(), pixels), width, height);
+		}
+	}
+
+	private static ImageProcessor scale(final ImageProcessor ip, final int width,
+			final int height) {
+		if (ip.getWidth() == width && ip.getHeight() == height)
+			return ip;
+		ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+		return ip.resize(width, height, true);
+	}
+
+	private static int[] getTile(final ColorProcessor ip, final int tile,
+			final int width, final int height) {
+		final int x0 = tile / (ip.getHeight() / height) * width;
+		final int y0 = tile % (ip.getHeight() / height) * height;
+		final int[] pixels = (int[])ip.getPixels();
+		final int[] result = new int[width * height];
+		for (int y = 0; y < height; y++)
+			System.arraycopy(pixels, x0 + (y0 + y) * ip.getWidth(), result,
+				y * width, width);
+		return result;
+	}
+}
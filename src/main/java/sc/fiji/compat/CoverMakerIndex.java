@@ -0,0 +1,1054 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The photo database of the Cover Maker.
+ * <p>
+ * {@code plugins/Examples/CoverMaker/Prepare_Cover_Maker_Database.py} used to
+ * open every photo one after the other, add a downscaled copy to one TIFF
+ * stack per tile size and save yet another copy as a JPEG into a zip file;
+ * {@code Cover_Maker.py} then compared every tile of the template with every
+ * slice of that stack. Instead, each tile size gets an index file holding one
+ * fixed-length vector per photo, the photo's mean colors on a grid of the
+ * tile's size (i.e. the downscaled photo), and a vantage-point tree over
+ * these vectors, so that the closest photo to a tile is found by visiting a
+ * small part of the database only. The vectors and paths are memory-mapped
+ * instead of being read into the heap, when searching as well as when
+ * (re)building; only the tree's nodes are held in the heap.
+ * </p>
+ * <p>
+ * Building the index decodes the photos in parallel, subsampling the JPEGs
+ * while decoding, and rebuilding it only decodes the photos that are new or
+ * changed since the previous build. Rather than storing copies of the
+ * photos, the index records their paths, and the high-resolution cover is
+ * rendered from the photos themselves.
+ * </p>
+ * <p>
+ * The file format is: a header, then the vectors (3 bytes per grid cell, red,
+ * green and blue, row by row), then the tree (per node: the photo, the
+ * threshold and the size of the inner subtree; the inner subtree follows
+ * the node, the outer subtree follows the inner one), then one line per photo
+ * file that was considered ({@code T}, {@code S} or {@code F} for indexed,
+ * skipped for its aspect ratio or failed to read, size, modification time
+ * and path, separated by tabs), in the order of the vectors. The header
+ * records the aspect ratio, too, as photos are only reused by a rebuild
+ * for the same one; photos that failed are read again by every rebuild.
+ * </p>
+ */
+public class CoverMakerIndex {
+
+	private final static int MAGIC = 0x46434d49; // "FCMI"
+	private final static int VERSION = 2;
+	private final static int HEADER = 64;
+	private final static int NODE = 16;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** How many pixels of the decoded photo to average per grid cell. */
+	private final static int OVERSAMPLING = 4;
+
+	/** Below this many photos, a subtree is built by the current thread. */
+	private final static int PARALLEL_THRESHOLD = 8192;
+
+	private final File file;
+	private final int tileWidth, tileHeight, aspect, dims, count;
+	private final Features features;
+	private final int[] items, insideSizes, positions;
+	private final double[] thresholds;
+	private final ByteBuffer names;
+	private final int[] pathOffsets;
+
+	/**
+	 * Maps the vectors and the file names; the tree is read into the heap.
+	 */
+	private CoverMakerIndex(final File file) throws IOException {
+		this.file = file;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = read(channel, 0, HEADER).order(
+				ByteOrder.BIG_ENDIAN);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException("Not a Cover Maker index: " + file +
+					" (rebuild the database with Prepare Cover Maker Database)");
+			if (header.getInt(4) != VERSION)
+				throw new IOException("Unsupported index version: " + file);
+			tileWidth = header.getInt(8);
+			tileHeight = header.getInt(12);
+			count = header.getInt(16);
+			aspect = header.getInt(20);
+			final long treeOffset = header.getLong(24);
+			final long namesOffset = header.getLong(32);
+			final long namesLength = header.getLong(40);
+			dims = 3 * tileWidth * tileHeight;
+			features = new Features(channel, HEADER, count, dims);
+
+			items = new int[count];
+			thresholds = new double[count];
+			insideSizes = new int[count];
+			positions = new int[count];
+			final ByteBuffer tree = read(channel, treeOffset, (long)count * NODE);
+			for (int i = 0; i < count; i++) {
+				items[i] = tree.getInt();
+				thresholds[i] = tree.getDouble();
+				insideSizes[i] = tree.getInt();
+				positions[items[i]] = i;
+			}
+
+			if (namesLength > Integer.MAX_VALUE)
+				throw new IOException("Index too large: " + file);
+			names = channel.map(FileChannel.MapMode.READ_ONLY, namesOffset,
+				namesLength);
+			pathOffsets = new int[count];
+			int index = 0;
+			for (int offset = 0; offset < namesLength;) {
+				final int end = lineEnd(offset);
+				if (names.get(offset) == 'T') {
+					if (index >= count)
+						throw new IOException("Corrupt index: " + file);
+					pathOffsets[index++] = offset;
+				}
+				offset = end + 1;
+			}
+			if (index != count)
+				throw new IOException("Corrupt index: " + file);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Opens an index built by {@link #build}.
+	 */
+	public static CoverMakerIndex open(final File file) throws IOException {
+		return new CoverMakerIndex(file);
+	}
+
+	/*
+	 * Drops the mappings, so that the file can be replaced (on Windows) without
+	 * waiting for the garbage collector; the index must not be used afterwards.
+	 */
+	private void release() {
+		features.release();
+		unmap(names);
+	}
+
+	/** @return the width of the tiles this index was built for */
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	/** @return the height of the tiles this index was built for */
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/** @return the number of photos */
+	public int size() {
+		return count;
+	}
+
+	/** @return the path of a photo */
+	public String getPath(final int photo) {
+		final int offset = pathOffsets[photo];
+		final String[] fields = getLine(offset).split("\t", 4);
+		return fields[3];
+	}
+
+	/**
+	 * Copies a photo's vector, i.e. the photo downscaled to the tile size.
+	 *
+	 * @param pixels the output, as RGB values, with one entry per grid cell
+	 */
+	public void getTile(final int photo, final int[] pixels) {
+		features.get(photo, pixels);
+	}
+
+	/**
+	 * Tracks which photos were used already.
+	 * <p>
+	 * The tree's nodes count the unused photos in their subtree, so that
+	 * subtrees with only used photos are not searched.
+	 * </p>
+	 */
+	public class Usage {
+		private final boolean[] used = new boolean[count];
+		private final int[] remaining = new int[count];
+
+		private Usage() {
+			initRemaining(0, count);
+		}
+
+		private void initRemaining(int position, final int end) {
+			// recurse into inner subtrees, iterate over the outer ones
+			while (position < end) {
+				remaining[position] = end - position;
+				final int inside = insideSizes[position];
+				initRemaining(position + 1, position + 1 + inside);
+				position += 1 + inside;
+			}
+		}
+
+		public boolean isUsed(final int photo) {
+			return used[positions[photo]];
+		}
+
+		public void use(final int photo) {
+			final int target = positions[photo];
+			if (used[target])
+				return;
+			used[target] = true;
+			int position = 0;
+			for (;;) {
+				remaining[position]--;
+				if (position == target)
+					return;
+				final int inside = insideSizes[position];
+				if (target <= position + inside)
+					position++;
+				else
+					position += 1 + inside;
+			}
+		}
+
+		/** @return the number of unused photos */
+		public int getRemaining() {
+			return count == 0 ? 0 : remaining[0];
+		}
+	}
+
+	/** @return a fresh tracker of used photos */
+	public Usage createUsage() {
+		return new Usage();
+	}
+
+	/**
+	 * Finds the unused photo closest to a tile.
+	 * <p>
+	 * The distance is the Euclidean distance of the RGB values; ties are
+	 * broken in favor of the photo indexed first. This method may be called
+	 * concurrently, as long as the usage is not modified at the same time.
+	 * </p>
+	 *
+	 * @param tile the tile's pixels (RGB), {@code tileWidth x tileHeight}
+	 * @param usage the used photos, or null
+	 * @return the photo, or -1 if there are no unused photos
+	 */
+	public int nearest(final int[] tile, final Usage usage) {
+		if (tile.length != tileWidth * tileHeight)
+			throw new IllegalArgumentException("Need a " + tileWidth + "x" +
+				tileHeight + " tile");
+		final byte[] query = new byte[dims];
+		for (int i = 0, j = 0; i < tile.length; i++) {
+			query[j++] = (byte)(tile[i] >> 16);
+			query[j++] = (byte)(tile[i] >> 8);
+			query[j++] = (byte)tile[i];
+		}
+		final Search search = new Search(query, usage);
+		search.search(0, count);
+		return search.bestPhoto;
+	}
+
+	private class Search {
+		private final byte[] query;
+		private final Usage usage;
+		private double best = Double.MAX_VALUE;
+		private int bestPhoto = -1;
+
+		private Search(final byte[] query, final Usage usage) {
+			this.query = query;
+			this.usage = usage;
+		}
+
+		private void search(final int position, final int end) {
+			if (position >= end ||
+					usage != null && usage.remaining[position] == 0)
+				return;
+			final int photo = items[position];
+			final double distance = Math.sqrt(features.distance(photo, query));
+			if ((usage == null || !usage.used[position]) && (distance < best ||
+					distance == best && photo < bestPhoto))
+			{
+				best = distance;
+				bestPhoto = photo;
+			}
+			final int insideEnd = position + 1 + insideSizes[position];
+			final double threshold = thresholds[position];
+			if (distance < threshold) {
+				search(position + 1, insideEnd);
+				if (distance + best >= threshold)
+					search(insideEnd, end);
+			}
+			else {
+				search(insideEnd, end);
+				if (distance - best <= threshold)
+					search(position + 1, insideEnd);
+			}
+		}
+	}
+
+	/**
+	 * Entry point for {@code Prepare_Cover_Maker_Database.py}.
+	 *
+	 * @see #build(File, int, int, double, int)
+	 */
+	public static String build(final String directory, final int minWidth,
+			final int maxWidth, final double aspectRatio) {
+		try {
+			return build(new File(directory), minWidth, maxWidth, aspectRatio,
+				Prefs.getThreads());
+		} catch (IOException e) {
+			IJ.handleException(e);
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Builds (or updates) the indexes for a directory of photos, one per tile
+	 * width, named {@code <width>_<height>.index}.
+	 * <p>
+	 * All JPEGs in the directory and its subdirectories whose aspect ratio
+	 * matches (to two decimals) are indexed.
+	 * </p>
+	 *
+	 * @param directory the directory containing the photos
+	 * @param minWidth the smallest tile width
+	 * @param maxWidth the largest tile width
+	 * @param aspectRatio the tiles' (and photos') width divided by height
+	 * @param threads how many photos to decode at the same time
+	 * @return the summary
+	 */
+	public static String build(final File directory, final int minWidth,
+			final int maxWidth, final double aspectRatio, final int threads)
+		throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		final List<Builder> builders = new ArrayList<Builder>();
+		for (int width = minWidth; width <= maxWidth; width++) {
+			final int height = (int)Math.round(width / aspectRatio);
+			builders.add(new Builder(new File(directory, width + "_" + height +
+				".index"), width, height));
+		}
+		if (builders.isEmpty())
+			throw new IllegalArgumentException("Invalid tile widths: " + minWidth +
+				" - " + maxWidth);
+		final int maxTileWidth = builders.get(builders.size() - 1).tileWidth;
+		final int maxTileHeight = builders.get(builders.size() - 1).tileHeight;
+
+		final List<Photo> photos = listPhotos(directory);
+		// which builders could not reuse which photos
+		final boolean[][] pending = new boolean[builders.size()][photos.size()];
+		final boolean[] needsDecoding = new boolean[photos.size()];
+		try {
+			// one previous index at a time, each released before the next
+			for (int b = 0; b < builders.size(); b++) {
+				final Builder builder = builders.get(b);
+				builder.begin(aspectRatio);
+				for (int i = 0; i < photos.size(); i++)
+					if (!builder.reuse(photos.get(i)))
+						pending[b][i] = needsDecoding[i] = true;
+				builder.endReuse();
+			}
+			final List<Integer> todo = new ArrayList<Integer>();
+			for (int i = 0; i < photos.size(); i++)
+				if (needsDecoding[i])
+					todo.add(i);
+
+			final AtomicInteger done = new AtomicInteger(), skipped =
+				new AtomicInteger(), failed = new AtomicInteger();
+			final ExecutorService executor =
+				Executors.newFixedThreadPool(Math.max(1, threads));
+			try {
+				for (final int index : todo)
+					executor.submit(new Runnable() {
+						@Override
+						public void run() {
+							final Photo photo = photos.get(index);
+							try {
+								final BufferedImage image = readPhoto(photo.file, aspectRatio,
+									OVERSAMPLING * maxTileWidth, OVERSAMPLING * maxTileHeight);
+								if (image == null)
+									skipped.incrementAndGet();
+								final int[] pixels = image == null ? null : image.getRGB(0, 0,
+									image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+								for (int b = 0; b < builders.size(); b++) {
+									if (!pending[b][index])
+										continue;
+									final Builder builder = builders.get(b);
+									builder.add(photo, pixels == null ? null : downscale(pixels,
+										image.getWidth(), image.getHeight(), builder.tileWidth,
+										builder.tileHeight));
+								}
+							} catch (final Throwable t) {
+								failed.incrementAndGet();
+								IJ.log("Could not index " + photo.file + ": " + t);
+								try {
+									for (int b = 0; b < builders.size(); b++)
+										if (pending[b][index])
+											builders.get(b).addFailed(photo);
+								} catch (final IOException e) {
+									IJ.handleException(e);
+								}
+							}
+							final int count = done.incrementAndGet();
+							IJ.showProgress(count, todo.size());
+							if (count % 1000 == 0)
+								IJ.showStatus("Indexed " + count + "/" + todo.size() +
+									" photos");
+						}
+					});
+				executor.shutdown();
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+					; // wait
+			} catch (final InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+			IJ.showProgress(1, 1);
+
+			IJ.showStatus("Building the search trees");
+			for (final Builder builder : builders)
+				builder.finish(threads);
+
+			return String.format("Indexed %d photos in %.1fs: %d of %d files were new"
+				+ " or changed, %d skipped for their aspect ratio, %d unreadable",
+				builders.get(0).count, (System.currentTimeMillis() - start) / 1000.0,
+				todo.size(), photos.size(), skipped.get(), failed.get());
+		}
+		finally {
+			for (final Builder builder : builders)
+				builder.abort();
+		}
+	}
+
+	/**
+	 * Reads a photo, subsampling it while decoding as far as the requested
+	 * minimal size allows.
+	 *
+	 * @param aspectRatio the required aspect ratio, or 0
+	 * @return the image, or null if the aspect ratio did not match
+	 */
+	static BufferedImage readPhoto(final File file, final double aspectRatio,
+			final int minWidth, final int minHeight) throws IOException
+	{
+		final ImageInputStream in = ImageIO.createImageInputStream(file);
+		if (in == null)
+			throw new IOException("Could not open " + file);
+		try {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (readers.hasNext()) {
+				final ImageReader reader = readers.next();
+				try {
+					reader.setInput(in, true, true);
+					final int width = reader.getWidth(0), height = reader.getHeight(0);
+					if (!matches(width, height, aspectRatio))
+						return null;
+					final ImageReadParam param = reader.getDefaultReadParam();
+					final int factor = Math.max(1, Math.min(width / Math.max(1,
+						minWidth), height / Math.max(1, minHeight)));
+					param.setSourceSubsampling(factor, factor, 0, 0);
+					return reader.read(0, param);
+				} catch (final IIOException e) {
+					// e.g. CMYK JPEGs; let ImageJ try
+				}
+				finally {
+					reader.dispose();
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		final ImagePlus imp = IJ.openImage(file.getPath());
+		if (imp == null)
+			throw new IOException("Could not open " + file);
+		if (!matches(imp.getWidth(), imp.getHeight(), aspectRatio))
+			return null;
+		return imp.getProcessor().convertToRGB().getBufferedImage();
+	}
+
+	private static boolean matches(final int width, final int height,
+			final double aspectRatio) {
+		// the ratio is compared to two decimals, ignoring minor variations
+		return aspectRatio <= 0 || Math.round(100.0 * width / height) ==
+			Math.round(100 * aspectRatio);
+	}
+
+	/**
+	 * Averages RGB pixels on a grid.
+	 *
+	 * @return the averages, 3 bytes per grid cell
+	 */
+	static byte[] downscale(final int[] pixels, final int width,
+			final int height, final int gridWidth, final int gridHeight)
+	{
+		final byte[] result = new byte[3 * gridWidth * gridHeight];
+		int index = 0;
+		for (int gy = 0; gy < gridHeight; gy++) {
+			final int y0 = (int)((long)gy * height / gridHeight);
+			final int y1 = Math.max(y0 + 1, (int)((long)(gy + 1) * height /
+				gridHeight));
+			for (int gx = 0; gx < gridWidth; gx++) {
+				final int x0 = (int)((long)gx * width / gridWidth);
+				final int x1 = Math.max(x0 + 1, (int)((long)(gx + 1) * width /
+					gridWidth));
+				long red = 0, green = 0, blue = 0;
+				for (int y = y0; y < y1 && y < height; y++)
+					for (int x = x0; x < x1 && x < width; x++) {
+						final int rgb = pixels[x + y * width];
+						red += (rgb >> 16) & 0xff;
+						green += (rgb >> 8) & 0xff;
+						blue += rgb & 0xff;
+					}
+				final long n = (long)(Math.min(y1, height) - y0) *
+					(Math.min(x1, width) - x0);
+				result[index++] = (byte)((red + n / 2) / n);
+				result[index++] = (byte)((green + n / 2) / n);
+				result[index++] = (byte)((blue + n / 2) / n);
+			}
+		}
+		return result;
+	}
+
+	private static class Photo {
+		private final File file;
+		private final long size, lastModified;
+
+		private Photo(final File file, final long size, final long lastModified) {
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static List<Photo> listPhotos(final File directory)
+		throws IOException
+	{
+		final List<Photo> result = new ArrayList<Photo>();
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path path,
+					final BasicFileAttributes attributes) {
+				final String name = path.getFileName().toString().toLowerCase();
+				if (attributes.isRegularFile() && (name.endsWith(".jpg") ||
+						name.endsWith(".jpe") || name.endsWith(".jpeg")) &&
+						path.toString().indexOf('\n') < 0 && path.toString().indexOf('\t') < 0)
+					result.add(new Photo(path.toFile(), attributes.size(),
+						attributes.lastModifiedTime().toMillis()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(final Path path,
+					final IOException e) {
+				IJ.log("Could not read " + path + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(result, new Comparator<Photo>() {
+			@Override
+			public int compare(final Photo a, final Photo b) {
+				return a.file.getPath().compareTo(b.file.getPath());
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * Writes one index: the vectors go straight into the file, the lines into
+	 * a temporary file that is appended after the tree.
+	 */
+	private static class Builder {
+		private final File file, part, namesPart;
+		private final int tileWidth, tileHeight, dims;
+		private int aspect;
+		private CoverMakerIndex previous;
+		private Map<String, Integer> previousLines;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private Writer names;
+		private long position = HEADER;
+		private int count;
+
+		private Builder(final File file, final int tileWidth,
+				final int tileHeight) {
+			this.file = file;
+			this.part = new File(file.getPath() + ".part");
+			this.namesPart = new File(file.getPath() + ".names.part");
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			this.dims = 3 * tileWidth * tileHeight;
+		}
+
+		private void begin(final double aspectRatio) throws IOException {
+			aspect = (int)Math.round(100 * aspectRatio);
+			if (file.exists())
+				try {
+					// released by endReuse(), so that finish() can replace the file
+					previous = new CoverMakerIndex(file);
+					if (previous.tileWidth != tileWidth ||
+							previous.tileHeight != tileHeight || previous.aspect != aspect)
+						endReuse();
+					else
+						previousLines = previous.getLineOffsets();
+				} catch (final IOException e) {
+					IJ.log("Rebuilding " + file + ": " + e.getMessage());
+					previous = null;
+				}
+			raf = new RandomAccessFile(part, "rw");
+			raf.setLength(0);
+			channel = raf.getChannel();
+			names = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				namesPart), UTF8), 1 << 16);
+		}
+
+		/** @return whether the photo was indexed before, and is unchanged */
+		private boolean reuse(final Photo photo) throws IOException {
+			if (previousLines == null)
+				return false;
+			final Integer offset = previousLines.get(photo.file.getPath());
+			if (offset == null)
+				return false;
+			final String[] fields = previous.getLine(offset).split("\t", 4);
+			if (Long.parseLong(fields[1]) != photo.size ||
+					Long.parseLong(fields[2]) != photo.lastModified)
+				return false;
+			if (fields[0].equals("T")) {
+				final int index = previous.getIndex(offset);
+				final byte[] vector = new byte[dims];
+				previous.features.get(index, vector);
+				add(photo, vector);
+			}
+			else if (fields[0].equals("S"))
+				add(photo, null);
+			else
+				return false; // try again
+			return true;
+		}
+
+		/** Releases the previous index. */
+		private void endReuse() {
+			if (previous != null)
+				previous.release();
+			previous = null;
+			previousLines = null;
+		}
+
+		private synchronized void add(final Photo photo, final byte[] vector)
+			throws IOException
+		{
+			if (vector != null) {
+				final ByteBuffer buffer = ByteBuffer.wrap(vector);
+				while (buffer.hasRemaining())
+					position += channel.write(buffer, position);
+				count++;
+			}
+			write(vector != null ? "T" : "S", photo);
+		}
+
+		private synchronized void addFailed(final Photo photo) throws IOException {
+			write("F", photo);
+		}
+
+		private void write(final String status, final Photo photo)
+			throws IOException
+		{
+			names.write(status + "\t" + photo.size + "\t" + photo.lastModified +
+				"\t" + photo.file.getPath() + "\n");
+		}
+
+		private void finish(final int threads) throws IOException {
+			names.close();
+			names = null;
+
+			// build the tree over the vectors written so far
+			final Features features = new Features(channel, HEADER, count, dims);
+			final int[] items = new int[count];
+			for (int i = 0; i < count; i++)
+				items[i] = i;
+			final double[] thresholds = new double[count];
+			final int[] insideSizes = new int[count];
+			final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+			try {
+				pool.invoke(new TreeBuilder(features, items, thresholds, insideSizes,
+					0, count, new Random(count)));
+			}
+			finally {
+				pool.shutdown();
+				// so that the file can be moved into place
+				features.release();
+			}
+
+			final long treeOffset = position;
+			final ByteBuffer node = ByteBuffer.allocate(NODE * 4096);
+			for (int i = 0; i < count; i++) {
+				node.putInt(items[i]).putDouble(thresholds[i]).putInt(insideSizes[i]);
+				if (!node.hasRemaining() || i == count - 1) {
+					node.flip();
+					while (node.hasRemaining())
+						position += channel.write(node, position);
+					node.clear();
+				}
+			}
+
+			final long namesOffset = position;
+			final InputStream in = new FileInputStream(namesPart);
+			try {
+				final byte[] buffer = new byte[1 << 16];
+				for (;;) {
+					final int read = in.read(buffer);
+					if (read < 0)
+						break;
+					final ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+					while (wrapped.hasRemaining())
+						position += channel.write(wrapped, position);
+				}
+			}
+			finally {
+				in.close();
+			}
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(VERSION).putInt(tileWidth).putInt(
+				tileHeight).putInt(count).putInt(aspect).putLong(treeOffset).putLong(
+				namesOffset).putLong(position - namesOffset);
+			header.clear();
+			channel.write(header, 0);
+			channel.force(true);
+			raf.close();
+			raf = null;
+			namesPart.delete();
+			move(part, file);
+		}
+
+		/** Cleans up after a failed build; a no-op after {@link #finish}. */
+		private void abort() {
+			endReuse();
+			try {
+				if (names != null)
+					names.close();
+				if (raf != null)
+					raf.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			namesPart.delete();
+			part.delete();
+		}
+	}
+
+	/*
+	 * Builds the subtree of the photos in items[from..to), choosing a random
+	 * vantage point and splitting the others at the median distance to it.
+	 */
+	private static class TreeBuilder extends RecursiveAction {
+		private final Features features;
+		private final int[] items, insideSizes;
+		private final double[] thresholds;
+		private final int from, to;
+		private final Random random;
+
+		private TreeBuilder(final Features features, final int[] items,
+				final double[] thresholds, final int[] insideSizes, final int from,
+				final int to, final Random random) {
+			this.features = features;
+			this.items = items;
+			this.thresholds = thresholds;
+			this.insideSizes = insideSizes;
+			this.from = from;
+			this.to = to;
+			this.random = random;
+		}
+
+		@Override
+		protected void compute() {
+			int from = this.from;
+			final byte[] vantage = new byte[features.dims];
+			double[] distances = null;
+			while (from < to) {
+				final int others = to - from - 1;
+				swap(items, from, from + random.nextInt(others + 1));
+				if (others == 0) {
+					insideSizes[from] = 0;
+					return;
+				}
+				features.get(items[from], vantage);
+				if (distances == null)
+					distances = new double[others];
+				for (int i = 0; i < others; i++)
+					distances[i] = Math.sqrt(features.distance(items[from + 1 + i],
+						vantage));
+				final int inside = others / 2;
+				select(distances, items, from + 1, 0, others, inside);
+				thresholds[from] = distances[inside];
+				insideSizes[from] = inside;
+
+				final int insideFrom = from + 1, insideTo = from + 1 + inside;
+				if (inside >= PARALLEL_THRESHOLD) {
+					final TreeBuilder outer = new TreeBuilder(features, items,
+						thresholds, insideSizes, insideTo, to, new Random(random.nextLong()));
+					invokeAll(new TreeBuilder(features, items, thresholds, insideSizes,
+						insideFrom, insideTo, new Random(random.nextLong())), outer);
+					return;
+				}
+				new TreeBuilder(features, items, thresholds, insideSizes, insideFrom,
+					insideTo, random).compute();
+				from = insideTo;
+			}
+		}
+
+		/*
+		 * Partially sorts distances[from..to) (and the corresponding items,
+		 * offset by base) so that the k-th smallest distance is at k, the
+		 * smaller ones before it and the larger ones after it.
+		 */
+		private static void select(final double[] distances, final int[] items,
+				final int base, int from, int to, final int k)
+		{
+			while (to - from > 1) {
+				final double pivot = distances[(from + to) >>> 1];
+				int i = from, j = to - 1;
+				while (i <= j) {
+					while (distances[i] < pivot)
+						i++;
+					while (distances[j] > pivot)
+						j--;
+					if (i <= j) {
+						final double d = distances[i];
+						distances[i] = distances[j];
+						distances[j] = d;
+						swap(items, base + i, base + j);
+						i++;
+						j--;
+					}
+				}
+				if (k <= j)
+					to = j + 1;
+				else if (k >= i)
+					from = i;
+				else
+					return;
+			}
+		}
+
+		private static void swap(final int[] array, final int i, final int j) {
+			final int value = array[i];
+			array[i] = array[j];
+			array[j] = value;
+		}
+	}
+
+	/*
+	 * The vectors, memory-mapped in chunks of whole vectors, since a single
+	 * buffer cannot exceed 2GB.
+	 */
+	private static class Features {
+		private final ByteBuffer[] chunks;
+		private final int dims, perChunk;
+
+		private Features(final FileChannel channel, final long offset,
+				final int count, final int dims) throws IOException
+		{
+			this.dims = dims;
+			perChunk = Math.max(1, Integer.MAX_VALUE / dims);
+			chunks = new ByteBuffer[(count + perChunk - 1) / perChunk];
+			for (int i = 0; i < chunks.length; i++) {
+				final int vectors = Math.min(perChunk, count - i * perChunk);
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset +
+					(long)i * perChunk * dims, (long)vectors * dims);
+			}
+		}
+
+		private void release() {
+			for (int i = 0; i < chunks.length; i++) {
+				unmap(chunks[i]);
+				chunks[i] = null;
+			}
+		}
+
+		private void get(final int index, final byte[] vector) {
+			final ByteBuffer chunk = chunks[index / perChunk];
+			final int offset = (index % perChunk) * dims;
+			for (int i = 0; i < dims; i++)
+				vector[i] = chunk.get(offset + i);
+		}
+
+		private void get(final int index, final int[] pixels) {
+			final ByteBuffer chunk = chunks[index / perChunk];
+			int offset = (index % perChunk) * dims;
+			for (int i = 0; i < pixels.length; i++, offset += 3)
+				pixels[i] = 0xff000000 | (chunk.get(offset) & 0xff) << 16 |
+					(chunk.get(offset + 1) & 0xff) << 8 | (chunk.get(offset + 2) & 0xff);
+		}
+
+		/** @return the squared Euclidean distance */
+		private long distance(final int index, final byte[] vector) {
+			final ByteBuffer chunk = chunks[index / perChunk];
+			final int offset = (index % perChunk) * dims;
+			long sum = 0;
+			for (int i = 0; i < dims; i++) {
+				final int difference = (chunk.get(offset + i) & 0xff) -
+					(vector[i] & 0xff);
+				sum += difference * difference;
+			}
+			return sum;
+		}
+	}
+
+	/** Reads a part of a file into the heap. */
+	private static ByteBuffer read(final FileChannel channel, final long offset,
+			final long length) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate((int)length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException("Truncated file");
+		buffer.clear();
+		return buffer;
+	}
+
+	/*
+	 * Drops a mapping right away; mapped files cannot be replaced (on Windows)
+	 * until then. Without public API for it, this uses the JDK's internals and
+	 * otherwise leaves the mapping to the garbage collector. The buffer must
+	 * not be accessed afterwards.
+	 */
+	private static void unmap(final ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return;
+		try {
+			// Java 9 and later
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+				ByteBuffer.class);
+			final Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			invokeCleaner.invoke(field.get(null), buffer);
+			return;
+		} catch (final NoSuchMethodException e) {
+			// Java 8, see below
+		} catch (final Exception e) {
+			return;
+		}
+		try {
+			final Method getCleaner = buffer.getClass().getMethod("cleaner");
+			getCleaner.setAccessible(true);
+			final Object cleaner = getCleaner.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (final Exception e) {
+			// leave it to the garbage collector
+		}
+	}
+
+	private int lineEnd(int offset) {
+		final int limit = names.limit();
+		while (offset < limit && names.get(offset) != '\n')
+			offset++;
+		return offset;
+	}
+
+	private String getLine(final int offset) {
+		final int end = lineEnd(offset);
+		final byte[] bytes = new byte[end - offset];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = names.get(offset + i);
+		return new String(bytes, UTF8);
+	}
+
+	/** @return the index of the photo whose line starts at the offset */
+	private int getIndex(final int offset) {
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			if (pathOffsets[middle] < offset)
+				low = middle + 1;
+			else if (pathOffsets[middle] > offset)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		throw new IllegalArgumentException("No photo at " + offset);
+	}
+
+	/** @return the offsets of all lines, by path */
+	private Map<String, Integer> getLineOffsets() {
+		final Map<String, Integer> result = new HashMap<String, Integer>();
+		final int limit = names.limit();
+		for (int offset = 0; offset < limit;) {
+			final int end = lineEnd(offset);
+			final String line = getLine(offset);
+			final String[] fields = line.split("\t", 4);
+			if (fields.length == 4)
+				result.put(fields[3], offset);
+			offset = end + 1;
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath() + " (" + count + " photos, " + tileWidth + "x" +
+			tileHeight + ")";
+	}
+
+	private static void move(final File source, final File target)
+			throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
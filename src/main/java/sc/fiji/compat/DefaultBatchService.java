@@ -0,0 +1,510 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.macro.Interpreter;
+import ij.plugin.Macro_Runner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scijava.Cancelable;
+import org.scijava.module.ModuleRunner;
+import org.scijava.module.process.PostprocessorPlugin;
+import org.scijava.module.process.PreprocessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.PluginService;
+import org.scijava.script.ScriptInfo;
+import org.scijava.script.ScriptModule;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * The default {@link BatchService}.
+ * <p>
+ * The number of workers defaults to the number of processors and can be set
+ * via the {@code fiji.batch.workers} system property. Jobs run on the worker
+ * threads themselves, macros via ImageJ 1.x' {@link Macro_Runner}, scripts
+ * via a {@link ModuleRunner}. As ImageJ 1.x' {@link WindowManager} is global,
+ * jobs are isolated as far as it allows: each worker has its own current
+ * image, and the images a job opened are closed when it ends. The macro
+ * interpreter keeps global state, too ({@link Interpreter}'s static fields),
+ * so macros run one at a time, while scripts run concurrently.
+ * </p>
+ * <p>
+ * The socket only accepts clients that know the token written to a file
+ * readable by the current user only, see {@link #listen(int)}.
+ * </p>
+ */
+@Plugin(type = Service.class)
+public class DefaultBatchService extends AbstractService implements
+	BatchService
+{
+
+	/** How many finished jobs to remember. */
+	private final static int MAX_FINISHED = 10000;
+
+	private ThreadPoolExecutor workers;
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final List<BatchJob> finished =
+		Collections.synchronizedList(new ArrayList<BatchJob>());
+
+	/** The job running on the current worker thread, if any. */
+	private final ThreadLocal<BatchJob> current = new ThreadLocal<BatchJob>();
+	/** The images each running job opened and has not closed yet. */
+	private final Map<BatchJob, Set<ImagePlus>> images =
+		new ConcurrentHashMap<BatchJob, Set<ImagePlus>>();
+	private ImageListener imageListener;
+
+	/* What listen() and watch() opened; released by dispose(). */
+	private final List<ServerSocket> servers =
+		Collections.synchronizedList(new ArrayList<ServerSocket>());
+	private final List<WatchService> watchers =
+		Collections.synchronizedList(new ArrayList<WatchService>());
+	private final List<Thread> threads =
+		Collections.synchronizedList(new ArrayList<Thread>());
+	private final List<File> tokenFiles =
+		Collections.synchronizedList(new ArrayList<File>());
+
+	@Override
+	public void initialize() {
+		final Integer port = Integer.getInteger("fiji.batch.port");
+		final String queue = System.getProperty("fiji.batch.queue");
+		try {
+			if (port != null) {
+				final int actual = listen(port);
+				System.err.println("Batch service listening on port " + actual +
+					", token in " + getTokenFile(actual));
+			}
+			if (queue != null)
+				watch(new File(queue));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public Future<BatchJob> submit(final File script, final String arg) {
+		return submit(script, arg, null);
+	}
+
+	@Override
+	public List<BatchJob> getFinishedJobs() {
+		synchronized (finished) {
+			return new ArrayList<BatchJob>(finished);
+		}
+	}
+
+	@Override
+	public int listen(final int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port, 50,
+			InetAddress.getLoopbackAddress());
+		final File tokenFile = getTokenFile(server.getLocalPort());
+		final String token;
+		try {
+			token = writeToken(tokenFile);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		servers.add(server);
+		tokenFiles.add(tokenFile);
+		// not a daemon: the listener keeps a headless Fiji alive
+		final Thread thread = new Thread("Batch service listener") {
+			@Override
+			public void run() {
+				for (;;) try {
+					serve(server.accept(), token);
+				} catch (IOException e) {
+					if (server.isClosed())
+						return;
+					e.printStackTrace();
+				}
+			}
+		};
+		threads.add(thread);
+		thread.start();
+		return server.getLocalPort();
+	}
+
+	@Override
+	public File getTokenFile(final int port) {
+		return new File(System.getProperty("java.io.tmpdir"), "fiji-batch-" +
+			port + ".token");
+	}
+
+	/*
+	 * Writes a new random token to a file that only the current user can
+	 * read; a file left by somebody else is not trusted.
+	 */
+	private static String writeToken(final File file) throws IOException {
+		final byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		final StringBuilder builder = new StringBuilder();
+		for (final byte b : random)
+			builder.append(String.format("%02x", b & 0xff));
+		final String token = builder.toString();
+
+		final Path path = file.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// e.g. Windows, where the temporary directory is private already
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		Files.write(path, (token + "\n").getBytes("UTF-8"));
+		file.deleteOnExit();
+		return token;
+	}
+
+	@Override
+	public void watch(final File directory) throws IOException {
+		for (final String name : new String[] { "running", "done", "failed" }) {
+			final File subdirectory = new File(directory, name);
+			if (!subdirectory.isDirectory() && !subdirectory.mkdirs())
+				throw new IOException("Could not make " + subdirectory);
+		}
+		final WatchService watcher =
+			directory.toPath().getFileSystem().newWatchService();
+		// renaming a file into the directory counts as creating it
+		try {
+			directory.toPath().register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE);
+		} catch (IOException e) {
+			watcher.close();
+			throw e;
+		}
+		watchers.add(watcher);
+		final Thread thread = new Thread("Batch service queue " + directory) {
+			@Override
+			public void run() {
+				for (;;) {
+					// also picks up the files that were there before
+					pickUp(directory);
+					final WatchKey key;
+					try {
+						key = watcher.take();
+					} catch (InterruptedException e) {
+						return;
+					} catch (ClosedWatchServiceException e) {
+						return;
+					}
+					key.pollEvents();
+					if (!key.reset())
+						return;
+				}
+			}
+		};
+		threads.add(thread);
+		thread.start();
+	}
+
+	/**
+	 * Stops the workers, closes the sockets and queues opened by
+	 * {@link #listen(int)} and {@link #watch(File)}, ends their threads and
+	 * deletes the token files.
+	 */
+	@Override
+	public void dispose() {
+		synchronized (this) {
+			if (workers != null)
+				workers.shutdownNow();
+			if (imageListener != null)
+				ImagePlus.removeImageListener(imageListener);
+		}
+		synchronized (servers) {
+			for (final ServerSocket server : servers) try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			servers.clear();
+		}
+		synchronized (watchers) {
+			for (final WatchService watcher : watchers) try {
+				watcher.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			watchers.clear();
+		}
+		synchronized (threads) {
+			for (final Thread thread : threads)
+				thread.interrupt();
+			threads.clear();
+		}
+		synchronized (tokenFiles) {
+			for (final File file : tokenFiles)
+				file.delete();
+			tokenFiles.clear();
+		}
+	}
+
+	private synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			final int count = Integer.getInteger("fiji.batch.workers",
+				Runtime.getRuntime().availableProcessors());
+			final AtomicInteger counter = new AtomicInteger();
+			workers = new ThreadPoolExecutor(count, count, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "Batch worker "
+							+ counter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			workers.prestartAllCoreThreads();
+			imageListener = new ImageListener() {
+				@Override
+				public void imageOpened(final ImagePlus image) {
+					final BatchJob job = current.get();
+					if (job != null)
+						images.get(job).add(image);
+				}
+
+				@Override
+				public void imageClosed(final ImagePlus image) {
+					for (final Set<ImagePlus> set : images.values())
+						set.remove(image);
+				}
+
+				@Override
+				public void imageUpdated(final ImagePlus image) {
+					// ignore
+				}
+			};
+			ImagePlus.addImageListener(imageListener);
+		}
+		return workers;
+	}
+
+	private void run(final BatchJob job) {
+		final Thread thread = Thread.currentThread();
+		current.set(job);
+		images.put(job, Collections.newSetFromMap(
+			new ConcurrentHashMap<ImagePlus, Boolean>()));
+		WindowManager.setTempCurrentImage(thread, null);
+		job.started();
+		try {
+			final String name = job.getScript().getName();
+			if (name.endsWith(".ijm") || name.endsWith(".txt")) {
+				final String result;
+				synchronized (FijiTools.MACRO_LOCK) {
+					result = new Macro_Runner().runMacroFile(job.getScript()
+						.getAbsolutePath(), job.getArg());
+				}
+				if ("[aborted]".equals(result))
+					job.failed("Macro aborted");
+				else
+					job.succeeded(result);
+			}
+			else
+				runScript(job);
+		} catch (Throwable t) {
+			job.failed(t.toString());
+		}
+		finally {
+			cleanUp(job, thread);
+			synchronized (finished) {
+				finished.add(job);
+				if (finished.size() > MAX_FINISHED)
+					finished.remove(0);
+			}
+			System.err.println("Batch job " + job);
+		}
+	}
+
+	private void runScript(final BatchJob job) throws Exception {
+		final ScriptInfo info = new ScriptInfo(context(), job.getScript());
+		final ScriptModule module = info.createModule();
+		if (job.getArg() != null && info.getInput("arg") != null) {
+			module.setInput("arg", job.getArg());
+			module.resolveInput("arg");
+		}
+		final PluginService plugins = context().getService(PluginService.class);
+		// run in this thread rather than the ModuleService's
+		new ModuleRunner(context(), module,
+			plugins.createInstancesOfType(PreprocessorPlugin.class),
+			plugins.createInstancesOfType(PostprocessorPlugin.class)).run();
+		if (module instanceof Cancelable && ((Cancelable)module).isCanceled())
+			job.failed(((Cancelable)module).getCancelReason());
+		else
+			job.succeeded(module.getReturnValue() == null ? null : module
+				.getReturnValue().toString());
+	}
+
+	/*
+	 * Closes the images the job left open, so that neither they nor their
+	 * memory leak into the next job.
+	 */
+	private void cleanUp(final BatchJob job, final Thread thread) {
+		final Set<ImagePlus> left = images.remove(job);
+		final ImagePlus temp = WindowManager.getTempCurrentImage();
+		if (temp != null)
+			left.add(temp);
+		for (final ImagePlus image : left) try {
+			image.changes = false;
+			image.close();
+		} catch (Throwable t) {
+			IJ.handleException(t);
+		}
+		WindowManager.setTempCurrentImage(thread, null);
+		current.remove();
+	}
+
+	private void serve(final Socket socket, final String token)
+		throws IOException
+	{
+		final BufferedReader in = new BufferedReader(new InputStreamReader(
+			socket.getInputStream(), "UTF-8"));
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			socket.getOutputStream(), "UTF-8"), true);
+		final Thread thread = new Thread("Batch service client " +
+			socket.getRemoteSocketAddress()) {
+			@Override
+			public void run() {
+				final List<Future<BatchJob>> jobs = new ArrayList<Future<BatchJob>>();
+				try {
+					final String first = in.readLine();
+					if (first == null || !MessageDigest.isEqual(token.getBytes("UTF-8"),
+						first.trim().getBytes("UTF-8")))
+					{
+						out.println("Invalid token");
+						return;
+					}
+					for (;;) {
+						final String line = in.readLine();
+						if (line == null || line.equals("") || line.equals("quit"))
+							break;
+						final int tab = line.indexOf('\t');
+						final File script = new File(tab < 0 ? line : line.substring(0, tab));
+						final String arg = tab < 0 ? null : line.substring(tab + 1);
+						jobs.add(submit(script, arg, out));
+					}
+					// answer all jobs before hanging up
+					for (final Future<BatchJob> job : jobs)
+						job.get();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Queues a job; if out is non-null, the job's line is sent there as soon as
+	 * it finished.
+	 */
+	private Future<BatchJob> submit(final File script, final String arg,
+			final PrintWriter out) {
+		final BatchJob job = new BatchJob(nextId.getAndIncrement(), script, arg);
+		return getWorkers().submit(new Callable<BatchJob>() {
+			@Override
+			public BatchJob call() {
+				run(job);
+				if (out != null)
+					synchronized (out) {
+						out.println(job);
+					}
+				return job;
+			}
+		});
+	}
+
+	private void pickUp(final File directory) {
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (final File file : files) {
+			final String name = file.getName();
+			if (!file.isFile() || name.startsWith(".") || name.endsWith(".part") ||
+					name.equals("timings.tsv"))
+				continue;
+			final File running = new File(directory, "running/" + name);
+			try {
+				Files.move(file.toPath(), running.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				continue; // picked up by somebody else
+			}
+			final BatchJob job = new BatchJob(nextId.getAndIncrement(), running, null);
+			getWorkers().submit(new Runnable() {
+				@Override
+				public void run() {
+					DefaultBatchService.this.run(job);
+					final String target = job.getStatus() == BatchJob.Status.SUCCEEDED ?
+						"done/" : "failed/";
+					try {
+						Files.move(running.toPath(), new File(directory, target + name)
+							.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						synchronized (DefaultBatchService.this) {
+							final Writer out = new FileWriter(new File(directory,
+								"timings.tsv"), true);
+							try {
+								out.write(job + "\n");
+							}
+							finally {
+								out.close();
+							}
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+	}
+}
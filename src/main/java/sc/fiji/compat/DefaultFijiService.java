@@ -26,30 +26,48 @@
 @Plugin(type = Service.class)
 public class DefaultFijiService extends AbstractService implements FijiService {
 
+	private StartupTasks startup;
+
 	public void actuallyInitialize() {
-		FileDialogDecorator.registerAutomaticDecorator();
-		JFileChooserDecorator.registerAutomaticDecorator();
-		setAWTAppClassName("fiji-Main");
 		final ImageJ ij = IJ.getInstance();
+		startup = new StartupTasks();
+		startup.add("file-dialog-decorator", false, new Runnable() {
+			@Override
+			public void run() {
+				FileDialogDecorator.registerAutomaticDecorator();
+			}
+		});
+		startup.add("jfilechooser-decorator", false, new Runnable() {
+			@Override
+			public void run() {
+				JFileChooserDecorator.registerAutomaticDecorator();
+			}
+		});
+		startup.add("awt-app-class-name", false, new Runnable() {
+			@Override
+			public void run() {
+				setAWTAppClassName("fiji-Main");
+			}
+		});
+		startup.add("memory-monitor", false, new Runnable() {
+			@Override
+			public void run() {
+				MemoryMonitor.startIfRequested();
+			}
+		});
 		if (ij != null) {
-			new MenuRefresher().run();
-			new Thread() {
-				@Override
-				public void run() {
-					/*
-					 * Do not run updater when command line
-					 * parameters were specified.
-					 * Fiji automatically adds -eval ...
-					 * and -port7, so there should be at
-					 * least 3 parameters anyway.
-					 */
-					String[] ijArgs = ImageJ.getArgs();
-					if (ijArgs != null && ijArgs.length > 3)
-						return;
-				}
-			}.start();
-			new IJ_Alt_Key_Listener().run();
+			startup.add("menus", true, new MenuRefresher());
+			startup.add("alt-key-listener", true, new IJ_Alt_Key_Listener(),
+				"menus");
 		}
+		startup.run();
+		if (IJ.debugMode || Boolean.getBoolean("fiji.startup.timeline"))
+			System.err.print("Fiji startup:\n" + getStartupTimeline());
+	}
+
+	@Override
+	public String getStartupTimeline() {
+		return startup == null ? "" : startup.getTimeline();
 	}
 
 	@EventHandler
@@ -0,0 +1,104 @@
+package sc.fiji.compat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists directories via a {@link DirectoryStream}, caching the results.
+ * <p>
+ * A cached listing is reused as long as the directory's modification time is
+ * unchanged. As file systems record modification times with a limited
+ * resolution (a whole second or worse on network shares), listings taken
+ * shortly after the last modification are not trusted.
+ * </p>
+ * <p>
+ * The enumeration stops as soon as the listing thread is interrupted, e.g.
+ * when the user navigates elsewhere in a file chooser while a large directory
+ * on a slow share is still being read; such partial listings are not cached.
+ * </p>
+ */
+class DirectoryListing {
+
+	private final static int MAX_DIRECTORIES =
+		Integer.getInteger("fiji.listing.cache.size", 64);
+
+	/** Listings younger than this, relative to the mtime, are not cached. */
+	private final static long MTIME_RESOLUTION = 2000;
+
+	private static class Listing {
+		final long lastModified;
+		final File[] files;
+
+		Listing(final long lastModified, final File[] files) {
+			this.lastModified = lastModified;
+			this.files = files;
+		}
+	}
+
+	private final static Map<File, Listing> cache =
+		new LinkedHashMap<File, Listing>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<File, Listing> eldest) {
+				return size() > MAX_DIRECTORIES;
+			}
+		};
+
+	/**
+	 * Lists the given directory.
+	 *
+	 * @param directory the directory
+	 * @return the entries, in no particular order
+	 * @throws InterruptedIOException if the current thread was interrupted
+	 *           while listing
+	 * @throws IOException if the directory could not be read
+	 */
+	static File[] list(final File directory) throws IOException {
+		final long lastModified = directory.lastModified();
+		synchronized (cache) {
+			final Listing listing = cache.get(directory);
+			if (listing != null && listing.lastModified == lastModified)
+				return listing.files.clone();
+		}
+
+		final List<File> files = new ArrayList<File>();
+		final DirectoryStream<Path> stream =
+			Files.newDirectoryStream(directory.toPath());
+		try {
+			for (final Path path : stream) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Interrupted while listing "
+						+ directory);
+				files.add(new File(directory, path.getFileName().toString()));
+			}
+		}
+		finally {
+			stream.close();
+		}
+
+		final File[] result = files.toArray(new File[files.size()]);
+		if (lastModified > 0 && lastModified == directory.lastModified() &&
+				System.currentTimeMillis() - lastModified > MTIME_RESOLUTION) {
+			synchronized (cache) {
+				cache.put(directory, new Listing(lastModified, result.clone()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets all cached listings.
+	 */
+	static void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+}
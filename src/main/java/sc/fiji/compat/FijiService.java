@@ -9,4 +9,16 @@
  */
 public interface FijiService extends SciJavaService {
 
+	/**
+	 * Describes when, and on which thread, each initialization step ran.
+	 * <p>
+	 * Implementations that do not record a timeline need not override this.
+	 * </p>
+	 *
+	 * @return one line per step, or the empty string before initialization
+	 */
+	default String getStartupTimeline() {
+		return "";
+	}
+
 }
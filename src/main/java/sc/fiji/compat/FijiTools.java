@@ -13,9 +13,8 @@
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.Map;
 
 import javax.swing.SwingUtilities;
@@ -27,6 +26,12 @@ public class FijiTools {
 	private static Field menuEntry2jarFile;
 	private static Field menuInstance;
 
+	/**
+	 * Held while running a macro: ImageJ 1.x' macro interpreter keeps global
+	 * state (batch mode, the current interpreter, the macro's file path).
+	 */
+	final static Object MACRO_LOCK = new Object();
+
 	public static String getImageJDir() {
 		String path = System.getProperty("ij.dir");
 		if (path != null)
@@ -45,16 +50,16 @@ public static String getImageJDir() {
 
 	public static boolean openFijiEditor(final String title, final String body) {
 		try {
-			Class<?> textEditor = ij.IJ.getClassLoader().loadClass("fiji.scripting.TextEditor");
-			final Constructor<?> ctor = textEditor.getConstructor(String.class, String.class);
+			final MethodHandle ctor = ReflectionCache.getConstructor(
+				"fiji.scripting.TextEditor", String.class, String.class);
 			final Runnable run = new Runnable() {
 				@Override
 				public void run() {
 					try {
-						Frame frame = (Frame)ctor.newInstance(title, body);
+						Frame frame = (Frame)ctor.invoke(title, body);
 						if (frame == null) Thread.currentThread().interrupt();
 						frame.setVisible(true);
-					} catch (Exception e) {
+					} catch (Throwable e) {
 						e.printStackTrace();
 						Thread.currentThread().interrupt();
 					}
@@ -77,13 +82,13 @@ public void run() {
 
 	public static boolean openIJ1Editor(String title, String body) {
 		try {
-			Class<?> clazz = IJ.getClassLoader().loadClass("ij.plugin.frame.Editor");
-			Constructor<?> ctor = clazz.getConstructor(new Class[] { Integer.TYPE, Integer.TYPE, Integer.TYPE, Integer.TYPE });
-			Object ed = ctor.newInstance(new Object[] { 16, 60, 0, 3 });
-			Method method = clazz.getMethod(title.endsWith(".ijm") ? "createMacro" : "create", new Class[] { String.class, String.class });
-			method.invoke(ed, new Object[] { title, body });
+			final String className = "ij.plugin.frame.Editor";
+			MethodHandle ctor = ReflectionCache.getConstructor(className, Integer.TYPE, Integer.TYPE, Integer.TYPE, Integer.TYPE);
+			Object ed = ctor.invoke(16, 60, 0, 3);
+			MethodHandle method = ReflectionCache.getMethod(className, title.endsWith(".ijm") ? "createMacro" : "create", String.class, String.class);
+			method.invoke(ed, title, body);
 			return true;
-		} catch (Exception e) {
+		} catch (Throwable e) {
 			IJ.handleException(e);
 		}
 
@@ -108,11 +113,11 @@ public static boolean openEditor(String title, String body) {
 	 */
 	public static boolean maybeOpenEditor(String path) {
 		try {
-			Class<?> textEditor = ij.IJ.getClassLoader().loadClass("fiji.scripting.TextEditor");
+			MethodHandle isBinary = ReflectionCache.getMethod("fiji.scripting.TextEditor", "isBinary", String.class);
 			if (path.indexOf("://") < 0 &&
 					!FileUtils.getExtension(path).equals("") &&
-					!((Boolean)textEditor.getMethod("isBinary", new Class[] { String.class }).invoke(null, path)).booleanValue() &&
-					!stackTraceContains("fiji.scripting.TextEditor.open(") &&
+					!((Boolean)isBinary.invoke(path)).booleanValue() &&
+					!isCalledFrom("fiji.scripting.TextEditor", "open") &&
 					IJ.runPlugIn("fiji.scripting.Script_Editor", path) != null)
 				return true;
 		} catch (Throwable t) {
@@ -123,16 +128,16 @@ public static boolean maybeOpenEditor(String path) {
 
 	public static boolean openFijiEditor(final File file) {
 		try {
-			Class<?> textEditor = ij.IJ.getClassLoader().loadClass("fiji.scripting.TextEditor");
-			final Constructor<?> ctor = textEditor.getConstructor(String.class);
+			final MethodHandle ctor = ReflectionCache.getConstructor(
+				"fiji.scripting.TextEditor", String.class);
 			final Runnable run = new Runnable() {
 				@Override
 				public void run() {
 					try {
-						Frame frame = (Frame)ctor.newInstance(file.getAbsolutePath());
+						Frame frame = (Frame)ctor.invoke(file.getAbsolutePath());
 						if (frame == null) Thread.currentThread().interrupt();
 						frame.setVisible(true);
-					} catch (Exception e) {
+					} catch (Throwable e) {
 						e.printStackTrace();
 						Thread.currentThread().interrupt();
 					}
@@ -153,6 +158,32 @@ public void run() {
 		return false;
 	}
 
+	/**
+	 * Determines whether the current thread is running inside the given method.
+	 * <p>
+	 * The stack frames are compared field by field, stopping at the first
+	 * match; unlike {@link #stackTraceContains(String)}, the stack trace is
+	 * never formatted.
+	 * </p>
+	 *
+	 * @param className the fully-qualified name of the class
+	 * @param methodName the name of the method
+	 * @return whether a caller of this method matches
+	 */
+	public static boolean isCalledFrom(final String className,
+			final String methodName) {
+		for (final StackTraceElement frame : new Throwable().getStackTrace())
+			if (methodName.equals(frame.getMethodName()) &&
+					className.equals(frame.getClassName()))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @deprecated Use {@link #isCalledFrom(String, String)} instead, which
+	 *             does not need to format the stack trace.
+	 */
+	@Deprecated
 	public static boolean stackTraceContains(String needle) {
 		final StringWriter writer = new StringWriter();
 		final PrintWriter out = new PrintWriter(writer);
@@ -211,6 +242,10 @@ public static MenuItem getMenuItem(MenuContainer container,
 	/*
 	 * Get the item with the given name either from the menuBar, or if
 	 * that is null, from the menu.
+	 *
+	 * The lookup goes through the MenuIndex, i.e. it is a hash lookup
+	 * rather than a linear walk of all labels; before creating a menu,
+	 * the miss is verified so that no duplicate is created.
 	 */
 	protected static MenuItem getMenuItem(MenuBar menuBar, Menu menu,
 			String name, boolean createIfNecessary) {
@@ -225,14 +260,10 @@ protected static MenuItem getMenuItem(MenuBar menuBar, Menu menu,
 			return menu;
 		}
 
-		int count = menuBar != null ?
-			menuBar.getMenuCount() : menu.getItemCount();
-		for (int i = 0; i < count; i++) {
-			MenuItem current = menuBar != null ?
-				menuBar.getMenu(i) : menu.getItem(i);
-			if (name.equals(current.getLabel()))
-				return current;
-		}
+		MenuItem current = MenuIndex.get(menuBar, menu, name,
+			createIfNecessary);
+		if (current != null)
+			return current;
 
 		if (createIfNecessary) {
 			Menu newMenu = new PopupMenu(name);
@@ -240,6 +271,7 @@ protected static MenuItem getMenuItem(MenuBar menuBar, Menu menu,
 				menuBar.add(newMenu);
 			else
 				menu.add(newMenu);
+			MenuIndex.add(menuBar != null ? menuBar : menu, newMenu);
 			return newMenu;
 		}
 		else
@@ -272,7 +304,7 @@ public static MenuItem installPlugin(String menuPath, String name,
 	@SuppressWarnings("unchecked")
 	public static MenuItem installPlugin(String menuPath, String name,
 			String command, File jarFile) {
-		if (Menus.getCommands().get(name) != null) {
+		if (CommandRegistry.containsKey(name)) {
 			IJ.log("The user plugin " + name
 				+ (jarFile == null ? "" : " (in " + jarFile + ")")
 				+ " would override an existing command!");
@@ -284,9 +316,10 @@ public static MenuItem installPlugin(String menuPath, String name,
 			Menu menu = getMenu(menuPath);
 			item = new MenuItem(name);
 			menu.add(item);
+			MenuIndex.add(menu, item);
 			item.addActionListener(IJ.getInstance());
 		}
-		Menus.getCommands().put(name, command);
+		CommandRegistry.put(name, command);
 
 		if (jarFile != null) {
 			if (menuEntry2jarFile == null) try {
@@ -324,18 +357,16 @@ public static Menu getMenu(String menuPath) {
 	 * @param arg the argument (use "" if you do not want to pass anything)
 	 */
 	public static void runPlugInGently(String className, String arg) {
+		final PlugIn plugin;
 		try {
-			Class<?> clazz = IJ.getClassLoader()
-				.loadClass(className);
-			if (clazz != null) {
-				PlugIn plugin = (PlugIn)clazz.newInstance();
-				plugin.run(arg);
-			}
+			plugin = (PlugIn)ReflectionCache.getConstructor(className).invoke();
 		}
-		catch (NoClassDefFoundError e) { }
-		catch (ClassNotFoundException e) { }
-		catch (InstantiationException e) { }
-		catch (IllegalAccessException e) { }
+		catch (NoClassDefFoundError e) { return; }
+		catch (ReflectiveOperationException e) { return; }
+		catch (RuntimeException e) { throw e; }
+		catch (Error e) { throw e; }
+		catch (Throwable t) { return; }
+		plugin.run(arg);
 	}
 
 	public static void runUpdater() {
@@ -350,7 +381,7 @@ public static void runUpdater() {
 	 * @param arg the arg to pass to the plugin's run() (or setup()) method
 	 */
 	public static void runGently(String menuLabel, final String arg) {
-		String className = (String)Menus.getCommands().get(menuLabel);
+		String className = CommandRegistry.get(menuLabel);
 		if (className != null)
 			IJ.runPlugIn(className, null);
 	}
@@ -22,6 +22,8 @@
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class FileDialogDecorator extends KeyAdapter {
 	// the list is assumed to be sorted
@@ -102,21 +104,112 @@ public void run() {
 	}
 
 	static boolean isSmaller(String s1, String s2) {
-		int prefixLen = Math.min(s1.length(), s2.length());
-		return s1.substring(0, prefixLen).compareTo(s2) > 0;
+		return comparePrefix(s1, s2) > 0;
+	}
+
+	/*
+	 * Compares the beginning of the item with the prefix, without allocating
+	 * substrings: 0 means that the item starts with the prefix.
+	 */
+	static int comparePrefix(String item, String prefix) {
+		int length = Math.min(item.length(), prefix.length());
+		for (int i = 0; i < length; i++) {
+			int diff = item.charAt(i) - prefix.charAt(i);
+			if (diff != 0)
+				return diff;
+		}
+		return item.length() < prefix.length() ? -1 : 0;
 	}
 
 	public static int findItemForPrefix(List list, String prefix) {
-		int index = list.getSelectedIndex() + 1;
-		if (index >= list.getItemCount() ||
-				isSmaller(list.getItem(index), prefix))
-			index = 0;
-		for (;;) {
-			if (list.getItem(index).startsWith(prefix)) {
-				return index;
+		return Snapshot.get(list).find(list.getSelectedIndex() + 1, prefix);
+	}
+
+	/*
+	 * A copy of the list's items, so that type-ahead can use a binary search
+	 * (the list is sorted, after all) instead of walking through possibly
+	 * hundreds of thousands of file names with every keystroke.
+	 *
+	 * java.awt.List does not notify anybody when its items change; the
+	 * snapshot is therefore validated by the item count and by the identity
+	 * of a few items, which changes whenever the FileDialog lists another
+	 * directory. Should the items not be sorted after all, the lookup falls
+	 * back to a linear search.
+	 */
+	static class Snapshot {
+		private final static Map<List, Snapshot> snapshots =
+			new WeakHashMap<List, Snapshot>();
+
+		final String[] items;
+		final boolean sorted;
+
+		Snapshot(String[] items) {
+			this.items = items;
+			boolean sorted = true;
+			for (int i = 1; sorted && i < items.length; i++)
+				sorted = items[i - 1].compareTo(items[i]) <= 0;
+			this.sorted = sorted;
+		}
+
+		static synchronized Snapshot get(List list) {
+			Snapshot snapshot = snapshots.get(list);
+			if (snapshot == null || !snapshot.matches(list)) {
+				snapshot = new Snapshot(list.getItems());
+				snapshots.put(list, snapshot);
+			}
+			return snapshot;
+		}
+
+		boolean matches(List list) {
+			int count = items.length;
+			if (list.getItemCount() != count)
+				return false;
+			if (count == 0)
+				return true;
+			return list.getItem(0) == items[0] &&
+				list.getItem(count / 2) == items[count / 2] &&
+				list.getItem(count - 1) == items[count - 1];
+		}
+
+		/*
+		 * Returns the first item at or after start beginning with the prefix.
+		 * If the item at start already sorts after the prefix, the search
+		 * starts over at the top.
+		 */
+		int find(int start, String prefix) {
+			if (start >= items.length ||
+					comparePrefix(items[start], prefix) > 0)
+				start = 0;
+			if (!sorted) {
+				for (int i = start; i < items.length; i++)
+					if (items[i].startsWith(prefix))
+						return i;
+				return -1;
 			}
-			if (++index >= list.getItemCount())
+			int first = lowerBound(prefix, true);
+			if (first >= items.length ||
+					comparePrefix(items[first], prefix) != 0)
 				return -1;
+			if (start <= first)
+				return first;
+			return start < lowerBound(prefix, false) ? start : -1;
+		}
+
+		/*
+		 * Finds the first item that does not sort before the prefix or, if
+		 * inclusive is false, the first item sorting after it.
+		 */
+		private int lowerBound(String prefix, boolean inclusive) {
+			int low = 0, high = items.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				int diff = comparePrefix(items[middle], prefix);
+				if (diff < 0 || (!inclusive && diff == 0))
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
 		}
 	}
 
@@ -1,6 +1,13 @@
 package sc.fiji.compat;
 
 import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class helps with invoking tasks much, much later.
@@ -10,45 +17,138 @@
  * these tasks run other tasks which run yet other tasks and we might want
  * to have them run first, before invoking our task.
  *
- * By queuing the same task a predetermined number of times, we achieve this.
+ * Therefore, the task is queued again as long as there are pending events,
+ * but at most a predetermined number of times. That is, it runs as soon as
+ * the event dispatch thread is idle, and no later than after {@code count}
+ * rounds.
+ *
+ * The delays are all handled by a single, shared scheduler thread. Deferring
+ * a task that is still pending (i.e. the same {@link Runnable}) replaces the
+ * pending invocation instead of queuing a second one.
  *
  * @author Johannes Schindelin
  */
 public class InvokeLater implements Runnable {
-	private long waitMillis;
+	private final static int DEFAULT_COUNT = 25;
+
+	private final static ScheduledThreadPoolExecutor scheduler;
+	private final static Map<Runnable, InvokeLater> pending =
+		new ConcurrentHashMap<Runnable, InvokeLater>();
+
+	static {
+		scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "InvokeLater");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	private final int maxCount;
 	private int count;
 	private final Runnable runnable;
+	private volatile ScheduledFuture<?> future;
+	private volatile boolean canceled;
 
 	/**
 	 * The constructor.
 	 *
-	 * @param count the number of times to queue the task before
+	 * @param count the maximal number of times to queue the task before
 	 *        actually invoking it.
 	 * @param runnable the task.
 	 */
 	public InvokeLater(final int count, final Runnable runnable) {
-		this.count = count;
+		this.maxCount = this.count = count;
 		this.runnable = runnable;
 	}
 
+	/**
+	 * Queues the task on the event dispatch thread after the given delay,
+	 * replacing any pending invocation of the same task.
+	 *
+	 * @param millis the delay in milliseconds
+	 */
 	public void later(long millis) {
-		waitMillis = millis;
-		new Thread(this).start();
+		final InvokeLater previous = pending.put(runnable, this);
+		if (previous != null)
+			previous.cancelInvocation();
+		count = maxCount;
+		canceled = false;
+		future = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				EventQueue.invokeLater(InvokeLater.this);
+			}
+		}, Math.max(0, millis), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels this invocation unless the task is already running.
+	 *
+	 * @return whether the task was still pending
+	 */
+	public boolean cancel() {
+		pending.remove(runnable, this);
+		return cancelInvocation();
+	}
+
+	private boolean cancelInvocation() {
+		if (canceled)
+			return false;
+		canceled = true;
+		final ScheduledFuture<?> future = this.future;
+		if (future != null)
+			future.cancel(false);
+		return true;
+	}
+
+	/**
+	 * Cancels the pending invocation of the given task, if any.
+	 *
+	 * @param runnable the task
+	 * @return whether the task was pending
+	 */
+	public static boolean cancel(final Runnable runnable) {
+		final InvokeLater invocation = pending.get(runnable);
+		return invocation != null && invocation.cancel();
+	}
+
+	/**
+	 * Runs the given task on the event dispatch thread once all pending events
+	 * have been handled.
+	 *
+	 * @param runnable the task
+	 * @return the invocation, e.g. to cancel it
+	 */
+	public static InvokeLater whenIdle(final Runnable runnable) {
+		final InvokeLater invocation = new InvokeLater(DEFAULT_COUNT, runnable);
+		invocation.later(0);
+		return invocation;
 	}
 
 	@Override
 	public void run() {
-		if (waitMillis > 0) try {
-			Thread.sleep(waitMillis);
-			waitMillis = 0;
-		} catch (InterruptedException e) {
-			// ignore and return
+		if (canceled)
 			return;
-		}
-		if (--count <= 0) {
-			runnable.run();
-		} else {
+		if (--count > 0 && isBusy()) {
 			EventQueue.invokeLater(this);
+			return;
+		}
+		if (future != null && !pending.remove(runnable, this))
+			return; // superseded
+		canceled = true;
+		runnable.run();
+	}
+
+	private static boolean isBusy() {
+		try {
+			return Toolkit.getDefaultToolkit().getSystemEventQueue()
+				.peekEvent() != null;
+		} catch (final SecurityException e) {
+			return true;
 		}
 	}
 }
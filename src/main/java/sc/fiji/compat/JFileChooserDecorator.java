@@ -15,10 +15,15 @@
 import java.awt.event.AWTEventListener;
 import java.awt.event.ContainerEvent;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.WeakHashMap;
 
+import javax.swing.Icon;
 import javax.swing.JFileChooser;
 import javax.swing.SwingUtilities;
+import javax.swing.filechooser.FileSystemView;
 
 public class JFileChooserDecorator implements DropTargetListener {
 	JFileChooser fileChooser;
@@ -51,9 +56,81 @@ public void eventDispatched(AWTEvent e) {
 			new DropTarget((JFileChooser)source, decorator);
 			allJFileChoosers.put((JFileChooser)source, decorator);
 			decorator.removeDropTargetsWithDelay(8);
+			decorator.installCachingFileSystemView();
 		}
 	}
 
+	/*
+	 * Swing's file choosers read directories in a background thread already,
+	 * but via File.listFiles() and anew every time. Wrap the FileSystemView
+	 * to use the cached DirectoryListing instead, which also gives up when
+	 * the chooser interrupts its loader, i.e. when the user navigates
+	 * elsewhere while a large directory is still being read.
+	 */
+	void installCachingFileSystemView() {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				FileSystemView view = fileChooser.getFileSystemView();
+				if (view != null && !(view instanceof CachingFileSystemView))
+					fileChooser.setFileSystemView(new CachingFileSystemView(view));
+			}
+		});
+	}
+
+	static class CachingFileSystemView extends FileSystemView {
+		private final FileSystemView delegate;
+
+		CachingFileSystemView(FileSystemView delegate) {
+			this.delegate = delegate;
+		}
+
+		public File[] getFiles(File dir, boolean useFileHiding) {
+			// special folders (e.g. Windows' "Computer") need the delegate
+			if (dir == null || dir.getClass() != File.class)
+				return delegate.getFiles(dir, useFileHiding);
+			File[] files;
+			try {
+				files = DirectoryListing.list(dir);
+			} catch (InterruptedIOException e) {
+				Thread.currentThread().interrupt();
+				return new File[0];
+			} catch (IOException e) {
+				return delegate.getFiles(dir, useFileHiding);
+			}
+			if (!useFileHiding)
+				return files;
+			java.util.List<File> result = new ArrayList<File>(files.length);
+			for (File file : files)
+				if (!delegate.isHiddenFile(file))
+					result.add(file);
+			return result.toArray(new File[result.size()]);
+		}
+
+		public File createNewFolder(File containingDir) throws IOException {
+			return delegate.createNewFolder(containingDir);
+		}
+
+		public boolean isRoot(File f) { return delegate.isRoot(f); }
+		public Boolean isTraversable(File f) { return delegate.isTraversable(f); }
+		public String getSystemDisplayName(File f) { return delegate.getSystemDisplayName(f); }
+		public String getSystemTypeDescription(File f) { return delegate.getSystemTypeDescription(f); }
+		public Icon getSystemIcon(File f) { return delegate.getSystemIcon(f); }
+		public boolean isParent(File folder, File file) { return delegate.isParent(folder, file); }
+		public File getChild(File parent, String fileName) { return delegate.getChild(parent, fileName); }
+		public boolean isFileSystem(File f) { return delegate.isFileSystem(f); }
+		public boolean isHiddenFile(File f) { return delegate.isHiddenFile(f); }
+		public boolean isFileSystemRoot(File dir) { return delegate.isFileSystemRoot(dir); }
+		public boolean isDrive(File dir) { return delegate.isDrive(dir); }
+		public boolean isFloppyDrive(File dir) { return delegate.isFloppyDrive(dir); }
+		public boolean isComputerNode(File dir) { return delegate.isComputerNode(dir); }
+		public File[] getRoots() { return delegate.getRoots(); }
+		public File getHomeDirectory() { return delegate.getHomeDirectory(); }
+		public File getDefaultDirectory() { return delegate.getDefaultDirectory(); }
+		public File createFileObject(File dir, String filename) { return delegate.createFileObject(dir, filename); }
+		public File createFileObject(String path) { return delegate.createFileObject(path); }
+		public File getParentDirectory(File dir) { return delegate.getParentDirectory(dir); }
+	}
+
 	public static void registerAutomaticDecorator() {
 		Toolkit.getDefaultToolkit().addAWTEventListener(new AutomaticDecorator(), AWTEvent.CONTAINER_EVENT_MASK);
 	}
@@ -0,0 +1,344 @@
+package sc.fiji.compat;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.LutLoader;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the lookup tables of Fiji's {@code luts/} directory in memory.
+ * <p>
+ * Applying a lookup table used to mean parsing its file every time, e.g. for
+ * every click on the arrows of the {@code Lookup Tables} toolset, or for every
+ * run of the Temporal-Color Code. Instead, all {@code .lut} files are parsed
+ * once, into 256 packed ARGB values each. A {@link WatchService} marks the
+ * tables as stale when files in the directory change, whereupon only the
+ * changed files are parsed again; where no watch service is available, the
+ * files' sizes and modification times are revalidated at most once a second.
+ * </p>
+ * <p>
+ * The tables are published as an immutable snapshot, so that lookups do not
+ * need to lock. {@link #toRGB(ImageProcessor, int[], int[])} renders 8-bit
+ * and 16-bit pixels through a packed table without creating an object per
+ * pixel, or per frame.
+ * </p>
+ */
+public class LutCache {
+
+	/** How long the tables are trusted when no watch service is available. */
+	private final static long TTL = 1000;
+
+	private static LutCache instance;
+
+	private final File directory;
+
+	/** The tables, by name (without the {@code .lut} extension). */
+	private volatile Map<String, Entry> entries;
+	private volatile boolean stale = true;
+	private volatile long checked;
+	private volatile WatchService watcher;
+	private boolean watchAttempted;
+
+	private static class Entry {
+		private final long size, lastModified;
+		private final int[] argb;
+		private final LUT lut;
+
+		private Entry(final long size, final long lastModified, final int[] argb) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.argb = argb;
+			this.lut = toLUT(argb);
+		}
+	}
+
+	LutCache(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the cache of this Fiji installation's {@code luts/} directory.
+	 *
+	 * @return the cache, or null if the directory is not known
+	 */
+	public static synchronized LutCache getInstance() {
+		if (instance == null) {
+			final String path = IJ.getDirectory("luts");
+			if (path == null)
+				return null;
+			instance = new LutCache(new File(path));
+		}
+		return instance;
+	}
+
+	/** @return the names of the lookup tables, sorted */
+	public List<String> getNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(getEntries()
+			.keySet()));
+	}
+
+	/**
+	 * Returns the packed ARGB values of a lookup table.
+	 * <p>
+	 * The returned array is shared and must not be modified.
+	 * </p>
+	 *
+	 * @param name the name of the lookup table, without extension
+	 * @return 256 ARGB values, or null if there is no such lookup table
+	 */
+	public int[] get(final String name) {
+		final Entry entry = getEntries().get(name);
+		return entry == null ? null : entry.argb;
+	}
+
+	/**
+	 * Returns a lookup table to set on images.
+	 * <p>
+	 * The returned table is a copy, as e.g.
+	 * {@link CompositeImage#setChannelLut(LUT)} sets its display range.
+	 * </p>
+	 *
+	 * @param name the name of the lookup table, without extension
+	 * @return the table, or null if there is no such lookup table
+	 */
+	public LUT getLUT(final String name) {
+		final Entry entry = getEntries().get(name);
+		return entry == null ? null : (LUT)entry.lut.clone();
+	}
+
+	/**
+	 * Sets a lookup table on an image: on all of its slices, or on the current
+	 * channel of a composite image.
+	 *
+	 * @return false if there is no such lookup table
+	 */
+	public boolean apply(final ImagePlus image, final String name) {
+		final LUT lut = getLUT(name);
+		if (lut == null)
+			return false;
+		if (image.isComposite())
+			((CompositeImage)image).setChannelLut(lut);
+		else
+			image.setLut(lut);
+		image.updateAndDraw();
+		return true;
+	}
+
+	/**
+	 * Entry point for macros' {@code call()}: sets a lookup table on the current
+	 * image.
+	 *
+	 * @param name the name of the lookup table, with or without {@code .lut}
+	 * @return the name, without extension, or the empty string upon error
+	 */
+	public static String apply(final String name) {
+		final ImagePlus image = WindowManager.getCurrentImage();
+		final LutCache cache = getInstance();
+		if (image == null || cache == null)
+			return "";
+		if (image.getBitDepth() == 24) {
+			IJ.error("RGB images do not have LUTs");
+			return "";
+		}
+		final String stripped = name.endsWith(".lut") ?
+			name.substring(0, name.length() - 4) : name;
+		return cache.apply(image, stripped) ? stripped : "";
+	}
+
+	/**
+	 * Entry point for macros' {@code call()}: lists the lookup tables.
+	 *
+	 * @return the file names, one per line
+	 */
+	public static String list() {
+		final LutCache cache = getInstance();
+		if (cache == null)
+			return "";
+		final StringBuilder builder = new StringBuilder();
+		for (final String name : cache.getNames())
+			builder.append(name).append(".lut\n");
+		return builder.toString();
+	}
+
+	/**
+	 * Renders 8-bit or 16-bit pixels through a lookup table.
+	 * <p>
+	 * 16-bit pixels are scaled by the processor's display range, as when they
+	 * are displayed.
+	 * </p>
+	 *
+	 * @param ip the pixels
+	 * @param argb the packed lookup table, e.g. from {@link #get(String)}
+	 * @param rgb the output, or null
+	 * @return the output, allocated if {@code rgb} was null or too small
+	 */
+	public static int[] toRGB(final ImageProcessor ip, final int[] argb,
+			int[] rgb) {
+		final int count = ip.getPixelCount();
+		if (rgb == null || rgb.length < count)
+			rgb = new int[count];
+		if (ip instanceof ByteProcessor) {
+			final byte[] pixels = (byte[])ip.getPixels();
+			for (int i = 0; i < count; i++)
+				rgb[i] = argb[pixels[i] & 0xff];
+		}
+		else if (ip instanceof ShortProcessor) {
+			final short[] pixels = (short[])ip.getPixels();
+			final int min = (int)ip.getMin(), max = (int)ip.getMax();
+			final double scale = 256.0 / (max - min + 1);
+			for (int i = 0; i < count; i++) {
+				final int value = (pixels[i] & 0xffff) - min;
+				final int index = value <= 0 ? 0 : (int)(value * scale + 0.5);
+				rgb[i] = argb[index > 255 ? 255 : index];
+			}
+		}
+		else
+			throw new IllegalArgumentException("Need an 8-bit or 16-bit image");
+		return rgb;
+	}
+
+	private Map<String, Entry> getEntries() {
+		final Map<String, Entry> result = entries;
+		if (result != null && !stale && (watcher != null ||
+				System.currentTimeMillis() - checked < TTL))
+			return result;
+		synchronized (this) {
+			if (!watchAttempted)
+				startWatching();
+			if (entries == null || stale || watcher == null &&
+					System.currentTimeMillis() - checked >= TTL)
+				rescan();
+			return entries;
+		}
+	}
+
+	/*
+	 * Reads the directory, parsing only the files that are new or changed
+	 * since the previous scan.
+	 */
+	private synchronized void rescan() {
+		// clear the flag first, so that changes during the scan are not lost
+		stale = false;
+		final Map<String, Entry> previous = entries;
+		final Map<String, Entry> result = new TreeMap<String, Entry>();
+		final File[] files = directory.listFiles();
+		if (files != null)
+			for (final File file : files) {
+				final String fileName = file.getName();
+				if (!fileName.endsWith(".lut") || !file.isFile())
+					continue;
+				final String name = fileName.substring(0, fileName.length() - 4);
+				final long size = file.length(), lastModified = file.lastModified();
+				final Entry old = previous == null ? null : previous.get(name);
+				if (old != null && old.size == size &&
+						old.lastModified == lastModified)
+				{
+					result.put(name, old);
+					continue;
+				}
+				try {
+					result.put(name, new Entry(size, lastModified, read(file)));
+				} catch (final IOException e) {
+					IJ.log("Could not read " + file + ": " + e.getMessage());
+				}
+			}
+		entries = Collections.unmodifiableMap(result);
+		checked = System.currentTimeMillis();
+	}
+
+	private static int[] read(final File file) throws IOException {
+		final IndexColorModel model = LutLoader.open(file.getPath());
+		if (model == null)
+			throw new IOException("Not a lookup table");
+		final int[] argb = new int[256];
+		final int size = model.getMapSize();
+		for (int i = 0; i < 256; i++)
+			argb[i] = model.getRGB(Math.min(i, size - 1));
+		return argb;
+	}
+
+	private static LUT toLUT(final int[] argb) {
+		final byte[] reds = new byte[256], greens = new byte[256],
+				blues = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			reds[i] = (byte)(argb[i] >> 16);
+			greens[i] = (byte)(argb[i] >> 8);
+			blues[i] = (byte)argb[i];
+		}
+		return new LUT(reds, greens, blues);
+	}
+
+	private void startWatching() {
+		watchAttempted = true;
+		if (!Boolean.parseBoolean(System.getProperty("fiji.luts.watch", "true")))
+			return;
+		try {
+			watcher = directory.toPath().getFileSystem().newWatchService();
+			directory.toPath().register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (final IOException e) {
+			closeWatcher();
+			return;
+		} catch (final UnsupportedOperationException e) {
+			closeWatcher();
+			return;
+		}
+		final WatchService service = watcher;
+		final Thread thread = new Thread("LUT cache watcher") {
+			@Override
+			public void run() {
+				for (;;) {
+					try {
+						final WatchKey key = service.take();
+						key.pollEvents();
+						stale = true;
+						if (!key.reset()) {
+							// the directory went away; fall back to the TTL
+							synchronized (LutCache.this) {
+								closeWatcher();
+							}
+							return;
+						}
+					} catch (final InterruptedException e) {
+						return;
+					} catch (final ClosedWatchServiceException e) {
+						return;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void closeWatcher() {
+		if (watcher == null)
+			return;
+		try {
+			watcher.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		watcher = null;
+	}
+}
@@ -0,0 +1,219 @@
+package sc.fiji.compat;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Opens uncompressed TIFF files via their {@link FileChannel}.
+ * <p>
+ * Only the TIFF header is parsed by ImageJ 1.x' {@link TiffDecoder}; the pixel
+ * arrays are then filled from a heap buffer, reused for every image and read
+ * with positional reads, without going through an {@link java.io.InputStream}
+ * and its intermediate buffers. The file used to be memory-mapped; but a
+ * mapping keeps the file from being deleted or replaced (on Windows) until it
+ * is garbage-collected, which got in the way of the {@link SampleCache}.
+ * </p>
+ * <p>
+ * This is only a fast path for the common, simple case: uncompressed 8-bit,
+ * unsigned 16-bit, 32-bit float or interleaved RGB images or stacks with
+ * contiguous strips, whose ImageJ metadata (if any) is limited to dimensions,
+ * spatial and temporal calibration and display range. For everything else,
+ * {@link #open(File)} returns null and the caller is expected to fall back to
+ * {@link ij.IJ#openImage(String)}.
+ * </p>
+ */
+class MappedTiffOpener {
+
+	private final static Set<String> supportedProperties =
+		new HashSet<String>(Arrays.asList("ImageJ", "images", "channels",
+			"slices", "frames", "hyperstack", "unit", "spacing", "min", "max",
+			"loop", "finterval", "fps"));
+
+	/**
+	 * Opens an uncompressed TIFF file.
+	 *
+	 * @param file the file
+	 * @return the image, or null if the file is not supported by this opener
+	 */
+	static ImagePlus open(final File file) {
+		final String name = file.getName().toLowerCase();
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+			return null;
+		try {
+			final FileInfo[] info = new TiffDecoder(file.getParent()
+				+ File.separator, file.getName()).getTiffInfo();
+			if (info == null || info.length == 0 || !isSupported(info))
+				return null;
+			final FileInfo fi = info[0];
+			final Properties props = new FileOpener(fi).decodeDescriptionString(fi);
+			if (props != null && !supportedProperties.containsAll(props.keySet()))
+				return null;
+
+			final ColorModel cm = fi.lutSize > 0 ?
+				new FileOpener(fi).createColorModel(fi) : null;
+			final ImageStack stack = new ImageStack(fi.width, fi.height, cm);
+			final int imageSize = fi.width * fi.height * fi.getBytesPerPixel();
+			final ByteBuffer buffer = ByteBuffer.allocate(imageSize);
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel channel = in.getChannel();
+				final long size = channel.size();
+				for (final FileInfo f : info) {
+					long offset = f.getOffset();
+					for (int i = 0; i < Math.max(1, f.nImages); i++) {
+						if (offset + imageSize > size)
+							return null; // truncated
+						buffer.clear();
+						while (buffer.hasRemaining())
+							if (channel.read(buffer, offset + buffer.position()) < 0)
+								return null;
+						buffer.flip();
+						final int index = stack.getSize();
+						final String label = fi.sliceLabels != null &&
+							index < fi.sliceLabels.length ? fi.sliceLabels[index] : null;
+						stack.addSlice(label, readPixels(buffer, f));
+						offset += imageSize + f.gapBetweenImages;
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+
+			final ImagePlus imp = new ImagePlus(fi.fileName, stack);
+			imp.setFileInfo(fi);
+			setCalibration(imp, fi, props);
+			return imp;
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean isSupported(final FileInfo[] info) {
+		final FileInfo first = info[0];
+		switch (first.fileType) {
+		case FileInfo.GRAY8:
+		case FileInfo.GRAY16_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+		case FileInfo.RGB:
+			break;
+		default:
+			return false;
+		}
+		if (first.channelLuts != null || first.displayRanges != null ||
+				first.roi != null || first.overlay != null ||
+				first.coefficients != null || first.valueUnit != null ||
+				first.whiteIsZero)
+			return false;
+		for (final FileInfo fi : info) {
+			if (fi.compression != FileInfo.COMPRESSION_NONE ||
+					fi.fileType != first.fileType || fi.width != first.width ||
+					fi.height != first.height ||
+					fi.intelByteOrder != first.intelByteOrder)
+				return false;
+			if (info.length > 1 && fi.nImages > 1)
+				return false;
+			if (fi.stripOffsets != null && fi.stripLengths != null) {
+				long expected = fi.stripOffsets[0];
+				for (int i = 0; i < fi.stripOffsets.length; i++) {
+					if (fi.stripOffsets[i] != expected)
+						return false;
+					expected += fi.stripLengths[i];
+				}
+			}
+		}
+		return true;
+	}
+
+	private static Object readPixels(final ByteBuffer data, final FileInfo fi) {
+		final ByteBuffer buffer = data.order(fi.intelByteOrder ?
+			ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		final int count = fi.width * fi.height;
+		switch (fi.fileType) {
+		case FileInfo.GRAY8:
+			final byte[] bytes = new byte[count];
+			buffer.get(bytes);
+			return bytes;
+		case FileInfo.GRAY16_UNSIGNED:
+			final short[] shorts = new short[count];
+			buffer.asShortBuffer().get(shorts);
+			return shorts;
+		case FileInfo.GRAY32_FLOAT:
+			final float[] floats = new float[count];
+			buffer.asFloatBuffer().get(floats);
+			return floats;
+		case FileInfo.RGB:
+			final int[] rgb = new int[count];
+			for (int i = 0, j = 0; i < count; i++, j += 3)
+				rgb[i] = 0xff000000 | ((buffer.get(j) & 0xff) << 16) |
+					((buffer.get(j + 1) & 0xff) << 8) | (buffer.get(j + 2) & 0xff);
+			return rgb;
+		default:
+			throw new IllegalArgumentException("Unsupported type: " + fi.fileType);
+		}
+	}
+
+	/*
+	 * The subset of ij.io.FileOpener#setCalibration() (which is not
+	 * accessible) matching the properties in supportedProperties.
+	 */
+	private static void setCalibration(final ImagePlus imp, final FileInfo fi,
+			final Properties props) {
+		final Calibration cal = imp.getCalibration();
+		if (fi.pixelWidth > 0.0 && fi.unit != null) {
+			cal.pixelWidth = fi.pixelWidth;
+			cal.pixelHeight = fi.pixelHeight;
+			cal.pixelDepth = fi.pixelDepth;
+			cal.setUnit(fi.unit);
+		}
+		if (fi.frameInterval != 0.0)
+			cal.frameInterval = fi.frameInterval;
+		if (fi.info != null)
+			imp.setProperty("Info", fi.info);
+		if (props == null)
+			return;
+
+		cal.fps = getDouble(props, "fps", cal.fps);
+		cal.loop = "true".equals(props.getProperty("loop"));
+		final int channels = (int)getDouble(props, "channels", 1);
+		final int slices = (int)getDouble(props, "slices", 1);
+		final int frames = (int)getDouble(props, "frames", 1);
+		if (channels * slices * frames == imp.getStackSize()) {
+			imp.setDimensions(channels, slices, frames);
+			if ("true".equals(props.getProperty("hyperstack")))
+				imp.setOpenAsHyperStack(true);
+		}
+		final double min = getDouble(props, "min", 0);
+		final double max = getDouble(props, "max", 0);
+		if (max > min && (imp.getBitDepth() == 16 || imp.getBitDepth() == 32))
+			imp.setDisplayRange(min, max);
+	}
+
+	private static double getDouble(final Properties props, final String key,
+			final double defaultValue) {
+		final String value = props.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (final NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
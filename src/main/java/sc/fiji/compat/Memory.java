@@ -16,6 +16,10 @@
 /** This plugin implements the {@code Edit>Options>Memory & Threads...} command. */
 public class Memory implements PlugIn {
 	public void run(String arg) {
+		if ("auto".equals(arg)) {
+			runAuto();
+			return;
+		}
 		if (IJ.isMacOSX()) {
 			// Unfortunately, ImageJ 1.x' Memory & Threads makes way too many assumptions to be
 			// reused on MacOSX. A pity.
@@ -34,7 +38,77 @@ public void run(String arg) {
 			IJ.error("Could not write initial ImageJ.cfg!");
 			return;
 		}
+		// ImageJ 1.x' dialog writes the file itself; undo that if asked to
+		final String previous;
+		try {
+			previous = readFile(configFile);
+		} catch (final IOException e) {
+			IJ.error("Could not read " + configFile);
+			return;
+		}
 		new ij.plugin.Memory().run(arg);
+		final long configured = readConfiguredMemory(configFile);
+		if (configured <= 0 || configured == readConfiguredMemory(previous) ||
+				confirmWorkingSet(configured))
+			return;
+		try {
+			final FileOutputStream out = new FileOutputStream(configFile);
+			out.write(previous.getBytes("UTF-8"));
+			out.close();
+			IJ.showStatus("Kept the previous memory limit");
+		} catch (final IOException e) {
+			IJ.error("Could not restore " + configFile);
+		}
+	}
+
+	/**
+	 * Warns if the given maximum heap is smaller than what the current session
+	 * holds on to after garbage collection.
+	 *
+	 * @return whether to go ahead
+	 */
+	private static boolean confirmWorkingSet(final long memory) {
+		if (memory >= MemoryMonitor.getWorkingSet() >> 20)
+			return true;
+		if (IJ.getInstance() == null || IJ.isMacro()) {
+			IJ.log(getWorkingSetWarning(memory));
+			return true;
+		}
+		return IJ.showMessageWithCancel("Memory", getWorkingSetWarning(memory));
+	}
+
+	private static String getWorkingSetWarning(final long memory) {
+		return "Note: the new limit of " + memory + " MB is smaller than\n"
+			+ "the " + (MemoryMonitor.getWorkingSet() >> 20) + " MB this session "
+			+ "currently uses after garbage collection.\n"
+			+ "The same work may run out of memory after a restart.";
+	}
+
+	private static long readConfiguredMemory(final File configFile) {
+		try {
+			return readConfiguredMemory(readFile(configFile));
+		} catch (final IOException e) {
+			return -1;
+		}
+	}
+
+	private static long readConfiguredMemory(final String config) {
+		try {
+			final Matcher matcher = Pattern.compile("-Xmx([0-9]+)([kKmMgG]?)")
+				.matcher(config);
+			if (!matcher.find())
+				return -1;
+			final long value = Long.parseLong(matcher.group(1));
+			switch (Character.toLowerCase(matcher.group(2).isEmpty() ?
+					'b' : matcher.group(2).charAt(0))) {
+			case 'k': return value >> 10;
+			case 'm': return value;
+			case 'g': return value << 10;
+			default: return value >> 20;
+			}
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
 	}
 
 	private static long maxMemory() {
@@ -51,10 +125,16 @@ private void runMacOSX() {
 		gd.addNumericField("Maximum Memory:", memory, 0, 5, "MB");
 		gd.addNumericField("Parallel Threads for Stacks:",
 				threads, 0, 5, "");
+		gd.addCheckbox("Auto (derive from this machine)", false);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
 
+		if (gd.getNextBoolean()) {
+			runAuto();
+			return;
+		}
+
 		if (gd.invalidNumber()) {
 			IJ.showMessage("Memory",
 					"The number entered was invalid.");
@@ -65,7 +145,7 @@ private void runMacOSX() {
 		threads = (int)gd.getNextNumber();
 		Prefs.setThreads(threads);
 
-		final int limit = 1700;
+		final long limit = MemoryAdvisor.LIMIT_32BIT;
 		if (!IJ.is64Bit() && memory > limit) {
 			if (!IJ.showMessageWithCancel("Memory",
 					"Note: setting the memory limit to a "
@@ -74,10 +154,91 @@ private void runMacOSX() {
 					+ "may cause ImageJ to fail to start."))
 				return;
 		}
+		if (!confirmWorkingSet(memory))
+			return;
 
 		writeFileMacOSX(memory);
 	}
 
+	/**
+	 * Sizes heap, garbage collector and threads automatically; see
+	 * {@link MemoryAdvisor}.
+	 */
+	private void runAuto() {
+		final MemoryAdvisor advisor = new MemoryAdvisor();
+		final String report = advisor.getReport();
+		IJ.log("Memory & Threads (Auto):\n" + report);
+		if (IJ.getInstance() != null && !IJ.isMacro()) {
+			final GenericDialog gd = new GenericDialog("Memory (Auto)");
+			gd.addMessage(report);
+			gd.setOKLabel("Apply");
+			gd.showDialog();
+			if (gd.wasCanceled())
+				return;
+		}
+		if (!confirmWorkingSet(advisor.heapMB))
+			return;
+
+		Prefs.setThreads(advisor.threads);
+		if (IJ.isMacOSX()) {
+			// the launcher only reads the heap size from the Info.plist
+			IJ.log("Note: the garbage collector (" + advisor.gc + ") cannot be"
+				+ " configured via Info.plist; keeping the default.");
+			writeFileMacOSX(advisor.heapMB);
+		}
+		else
+			writeConfig(advisor.heapMB, advisor.gc);
+	}
+
+	private void writeConfig(final long memory, final String gc) {
+		final File configFile = new File(FijiTools.getImageJDir(), "ImageJ.cfg");
+		try {
+			String contents = readFile(configFile);
+			if (contents.equals(""))
+				contents = ".\n"
+					+ (IJ.isWindows() ? "jre\\bin\\javaw.exe" : "jre/bin/java")
+					+ "\n-Xmx" + memory + "m -cp ij.jar ij.ImageJ\n";
+
+			FileOutputStream out = new FileOutputStream(configFile);
+			out.write(editConfig(contents, memory, gc).getBytes("UTF-8"));
+			out.close();
+			IJ.showMessage("Memory", "The new " + memory
+				+ "MB limit will take effect after Fiji"
+				+ " is restarted.");
+		} catch (Exception e) {
+			IJ.error("Could not write " + configFile);
+		}
+	}
+
+	/*
+	 * The third line of ImageJ.cfg holds the JVM options; replace -Xmx and any
+	 * previously-chosen garbage collector there. Missing lines are added.
+	 */
+	private static String editConfig(final String contents, final long memory,
+			final String gc) {
+		String[] lines = contents.split("\r?\n", -1);
+		if (lines.length < 3) {
+			final String[] defaults = { ".",
+				IJ.isWindows() ? "jre\\bin\\javaw.exe" : "jre/bin/java",
+				"-cp ij.jar ij.ImageJ", "" };
+			for (int i = 0; i < lines.length && i < 2; i++)
+				if (!lines[i].trim().equals(""))
+					defaults[i] = lines[i];
+			lines = defaults;
+		}
+		String options = lines[2]
+			.replaceAll("\\s*-XX:\\+Use(\\w+GC|NUMA)", "")
+			.replaceAll("-Xmx[0-9]+[kKmMgG]?", "").trim();
+		lines[2] = "-Xmx" + memory + "m " + gc + " " + options;
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < lines.length; i++) {
+			if (i > 0)
+				builder.append("\n");
+			builder.append(lines[i]);
+		}
+		return builder.toString();
+	}
+
 	private void writeFileMacOSX(final long memory) {
 		final File infoPList = new File(FijiTools.getImageJDir(), "Contents/Info.plist");
 
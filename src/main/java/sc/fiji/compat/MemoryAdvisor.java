@@ -0,0 +1,193 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Derives heap size, garbage collector and number of threads from the
+ * machine Fiji is running on.
+ * <p>
+ * The physical memory is obtained from the {@link OperatingSystemMXBean}; on
+ * Linux, the cgroup (v1 and v2) memory and CPU limits are honored, too, so that
+ * Fiji neither gets OOM-killed nor leaves most of the machine idle when
+ * running in a container. Finally, the number of NUMA nodes is taken into
+ * account when choosing the garbage collector.
+ * </p>
+ */
+class MemoryAdvisor {
+
+	private final static long MB = 1 << 20;
+
+	/** cgroup v1 reports "unlimited" as a huge number, close to 2^63. */
+	private final static long UNLIMITED = 1L << 60;
+
+	/** The largest heap a 32-bit JVM can be expected to start with. */
+	final static long LIMIT_32BIT = 1700;
+
+	long physicalMB = -1, cgroupMB = -1, heapMB;
+	int processors, cgroupCPUs = -1, numaNodes = 1, threads;
+	String gc;
+	final List<String> reasons = new ArrayList<String>();
+
+	MemoryAdvisor() {
+		detect();
+		derive();
+	}
+
+	private void detect() {
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		try {
+			if (os instanceof com.sun.management.OperatingSystemMXBean)
+				physicalMB = ((com.sun.management.OperatingSystemMXBean)os)
+					.getTotalPhysicalMemorySize() / MB;
+		} catch (final LinkageError e) {
+			// not a HotSpot/OpenJ9 JVM; keep the current limit, see below
+		}
+		processors = Runtime.getRuntime().availableProcessors();
+
+		if (!IJ.isLinux())
+			return;
+
+		// cgroup v2, then v1
+		long limit = readLimit("/sys/fs/cgroup/memory.max");
+		if (limit < 0)
+			limit = readLimit("/sys/fs/cgroup/memory/memory.limit_in_bytes");
+		if (limit > 0 && limit < UNLIMITED &&
+				(physicalMB < 0 || limit / MB < physicalMB))
+			cgroupMB = limit / MB;
+
+		final String cpuMax = readFirstLine("/sys/fs/cgroup/cpu.max");
+		if (cpuMax != null) {
+			final String[] fields = cpuMax.trim().split("\\s+");
+			if (fields.length == 2 && !fields[0].equals("max"))
+				cgroupCPUs = quotaToCPUs(fields[0], fields[1]);
+		}
+		else
+			cgroupCPUs = quotaToCPUs(
+				readFirstLine("/sys/fs/cgroup/cpu/cpu.cfs_quota_us"),
+				readFirstLine("/sys/fs/cgroup/cpu/cpu.cfs_period_us"));
+
+		final File[] nodes = new File("/sys/devices/system/node").listFiles();
+		if (nodes != null) {
+			int count = 0;
+			for (final File node : nodes)
+				if (node.getName().matches("node[0-9]+"))
+					count++;
+			if (count > 0)
+				numaNodes = count;
+		}
+	}
+
+	private void derive() {
+		long available = physicalMB;
+		if (available >= 0)
+			reasons.add("Physical memory: " + physicalMB + " MB.");
+		if (cgroupMB > 0) {
+			available = cgroupMB;
+			reasons.add("The container (cgroup) limits memory to " + cgroupMB
+				+ " MB; exceeding it gets Fiji killed.");
+		}
+
+		if (available < 0) {
+			// the current limit already is a heap size, not the machine's memory
+			heapMB = Runtime.getRuntime().maxMemory() / MB;
+			reasons.add("Physical memory could not be determined; keeping the"
+				+ " current maximum heap of " + heapMB + " MB.");
+		}
+		else {
+			// leave room for the OS, the JVM itself and off-heap buffers
+			final long reserve = Math.max(512, available / 4);
+			heapMB = Math.max(256, available - reserve);
+			reasons.add("Maximum heap: " + heapMB + " MB, leaving " + reserve
+				+ " MB (at least 512 MB, or a quarter) for the JVM's own and native"
+				+ " memory.");
+		}
+		if (!IJ.is64Bit() && heapMB > LIMIT_32BIT) {
+			heapMB = LIMIT_32BIT;
+			reasons.add("Capped at " + LIMIT_32BIT + " MB because this is a 32-bit"
+				+ " Java.");
+		}
+
+		threads = processors;
+		if (cgroupCPUs > 0 && cgroupCPUs < threads) {
+			threads = cgroupCPUs;
+			reasons.add("Threads: " + threads + " (the container's CPU quota;"
+				+ " the machine has " + processors + " processors).");
+		}
+		else
+			reasons.add("Threads: " + threads + " (available processors).");
+
+		if (numaNodes > 1) {
+			gc = "-XX:+UseParallelGC -XX:+UseNUMA";
+			reasons.add("GC: parallel, NUMA-aware. This machine has " + numaNodes
+				+ " NUMA nodes; only the parallel collector allocates node-locally"
+				+ " on Java 8.");
+		}
+		else if (threads <= 2 || heapMB < 1792) {
+			gc = "-XX:+UseSerialGC";
+			reasons.add("GC: serial. With " + threads + " thread(s) and a " + heapMB
+				+ " MB heap, a concurrent collector costs more than it saves.");
+		}
+		else {
+			gc = "-XX:+UseG1GC";
+			reasons.add("GC: G1, which keeps pauses short on large heaps with"
+				+ " several cores.");
+		}
+	}
+
+	/** @return a human-readable explanation of each choice */
+	String getReport() {
+		final StringBuilder builder = new StringBuilder();
+		for (final String reason : reasons)
+			builder.append(reason).append("\n");
+		return builder.toString();
+	}
+
+	private static int quotaToCPUs(final String quota, final String period) {
+		try {
+			final long q = Long.parseLong(quota.trim());
+			final long p = Long.parseLong(period.trim());
+			if (q <= 0 || p <= 0)
+				return -1;
+			return (int)Math.max(1, (q + p - 1) / p);
+		} catch (final RuntimeException e) {
+			return -1;
+		}
+	}
+
+	private static long readLimit(final String path) {
+		final String line = readFirstLine(path);
+		if (line == null || line.trim().equals("max"))
+			return -1;
+		try {
+			return Long.parseLong(line.trim());
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String readFirstLine(final String path) {
+		final File file = new File(path);
+		if (!file.canRead())
+			return null;
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				return reader.readLine();
+			}
+			finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import ij.plugin.frame.PlugInFrame;
+
+import java.awt.BorderLayout;
+import java.awt.Button;
+import java.awt.FileDialog;
+import java.awt.Font;
+import java.awt.Panel;
+import java.awt.TextArea;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Records heap, off-heap and garbage collector statistics.
+ * <p>
+ * Once started, a sample is taken every second from the {@link MemoryMXBean},
+ * the {@link GarbageCollectorMXBean}s and the direct/mapped
+ * {@link BufferPoolMXBean}s; the last hour is kept. The allocation rate is
+ * estimated from the growth of the young generation's pools between samples
+ * (after a collection, everything in them counts as newly allocated).
+ * </p>
+ * <p>
+ * As a command, it shows a window with the current values, the recent
+ * garbage collections and the memory footprint of each open image. When run
+ * from a macro, e.g. in a headless batch run, it exports the history instead:
+ * {@code run("Memory Monitor...", "export=/path/to/memory.csv")} (use a
+ * {@code .json} extension for JSON), including the size of each image that
+ * was open at the time. Setting the {@code fiji.memory.monitor}
+ * system property to a file path starts recording at startup and writes that
+ * file when the JVM exits.
+ * </p>
+ */
+public class MemoryMonitor implements PlugIn {
+
+	private final static long MB = 1 << 20;
+	private final static int MAX_SAMPLES = 3600;
+
+	/** A single measurement. */
+	static class Sample {
+		long time, heapUsed, heapCommitted, heapMax, nonHeapUsed, bufferUsed;
+		long gcCount, gcMillis, allocatedPerSecond, imageBytes;
+		/** The open images, and their sizes in bytes. */
+		String[] imageTitles;
+		long[] imageSizes;
+	}
+
+	private static Timer timer;
+	private static final LinkedList<Sample> samples = new LinkedList<Sample>();
+	private static long lastGCCount, lastGCMillis, lastYoungUsed, lastTime;
+
+	@Override
+	public void run(final String arg) {
+		start();
+		final String options = Macro.getOptions();
+		final String export = options == null ? null :
+			Macro.getValue(options, "export", null);
+		if (export != null) {
+			try {
+				export(new File(export));
+			} catch (final IOException e) {
+				IJ.handleException(e);
+			}
+			return;
+		}
+		if (IJ.getInstance() == null) {
+			IJ.log(format(getLatest()));
+			return;
+		}
+		new MonitorFrame().setVisible(true);
+	}
+
+	/**
+	 * Starts recording if the {@code fiji.memory.monitor} system property is
+	 * set, and writes the recorded history to the file it names upon exit.
+	 */
+	public static void startIfRequested() {
+		final String path = System.getProperty("fiji.memory.monitor");
+		if (path == null)
+			return;
+		start();
+		Runtime.getRuntime().addShutdownHook(new Thread("Memory monitor export") {
+			@Override
+			public void run() {
+				try {
+					export(new File(path));
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/** Starts recording (if it is not running yet). */
+	public static synchronized void start() {
+		if (timer != null)
+			return;
+		timer = new Timer("Memory monitor", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, 1000);
+	}
+
+	static void sample() {
+		final Sample sample = new Sample();
+		sample.time = System.currentTimeMillis();
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		final MemoryUsage heap = memory.getHeapMemoryUsage();
+		sample.heapUsed = heap.getUsed();
+		sample.heapCommitted = heap.getCommitted();
+		sample.heapMax = heap.getMax();
+		sample.nonHeapUsed = memory.getNonHeapMemoryUsage().getUsed();
+		for (final BufferPoolMXBean pool :
+				ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+			sample.bufferUsed += pool.getMemoryUsed();
+
+		long gcCount = 0, gcMillis = 0;
+		for (final GarbageCollectorMXBean gc :
+				ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcMillis += Math.max(0, gc.getCollectionTime());
+		}
+		final long youngUsed = getYoungUsed();
+		measureImages(sample);
+
+		synchronized (samples) {
+			if (lastTime > 0) {
+				sample.gcCount = gcCount - lastGCCount;
+				sample.gcMillis = gcMillis - lastGCMillis;
+				final long allocated = sample.gcCount > 0 || youngUsed < lastYoungUsed ?
+					youngUsed : youngUsed - lastYoungUsed;
+				final long elapsed = Math.max(1, sample.time - lastTime);
+				sample.allocatedPerSecond = allocated * 1000 / elapsed;
+			}
+			lastGCCount = gcCount;
+			lastGCMillis = gcMillis;
+			lastYoungUsed = youngUsed;
+			lastTime = sample.time;
+			samples.add(sample);
+			while (samples.size() > MAX_SAMPLES)
+				samples.removeFirst();
+		}
+	}
+
+	/*
+	 * The young generation's pools are the ones that a collector other than
+	 * the one managing the old generation is responsible for; by name, that
+	 * is "Eden" (or "Nursery" for OpenJ9).
+	 */
+	private static long getYoungUsed() {
+		long used = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP)
+				continue;
+			final String name = pool.getName().toLowerCase();
+			if (name.contains("eden") || name.contains("nursery"))
+				used += pool.getUsage().getUsed();
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the used heap after the most recent garbage collection, i.e. the
+	 * memory the application actually holds on to, in bytes.
+	 */
+	static long getWorkingSet() {
+		long used = 0;
+		boolean known = false;
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP)
+				continue;
+			final MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null) {
+				used += usage.getUsed();
+				known = true;
+			}
+		}
+		return known ? used :
+			ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void measureImages(final Sample sample) {
+		final List<String> titles = new ArrayList<String>();
+		final List<Long> sizes = new ArrayList<Long>();
+		final int[] ids = WindowManager.getIDList();
+		if (ids != null)
+			for (final int id : ids) {
+				final ImagePlus imp = WindowManager.getImage(id);
+				if (imp == null)
+					continue;
+				final long size = (long)imp.getSizeInBytes();
+				titles.add(imp.getTitle());
+				sizes.add(size);
+				sample.imageBytes += size;
+			}
+		sample.imageTitles = titles.toArray(new String[titles.size()]);
+		sample.imageSizes = new long[sizes.size()];
+		for (int i = 0; i < sample.imageSizes.length; i++)
+			sample.imageSizes[i] = sizes.get(i);
+	}
+
+	static Sample getLatest() {
+		synchronized (samples) {
+			if (samples.isEmpty())
+				sample();
+			return samples.getLast();
+		}
+	}
+
+	static List<Sample> getSamples() {
+		synchronized (samples) {
+			return new ArrayList<Sample>(samples);
+		}
+	}
+
+	/**
+	 * Writes the recorded history as CSV or, if the file name ends in
+	 * {@code .json}, as JSON. The CSV's last column lists the images as
+	 * {@code title=bytes}, separated by semicolons.
+	 */
+	static void export(final File file) throws IOException {
+		final boolean json = file.getName().toLowerCase().endsWith(".json");
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(file), "UTF-8"));
+		try {
+			final List<Sample> list = getSamples();
+			if (json) {
+				out.println("[");
+				for (int i = 0; i < list.size(); i++) {
+					final Sample s = list.get(i);
+					out.print("  {\"time\": " + s.time + ", \"heapUsed\": " + s.heapUsed
+						+ ", \"heapCommitted\": " + s.heapCommitted + ", \"heapMax\": "
+						+ s.heapMax + ", \"nonHeapUsed\": " + s.nonHeapUsed
+						+ ", \"bufferUsed\": " + s.bufferUsed + ", \"gcCount\": "
+						+ s.gcCount + ", \"gcMillis\": " + s.gcMillis
+						+ ", \"allocatedPerSecond\": " + s.allocatedPerSecond
+						+ ", \"imageBytes\": " + s.imageBytes + ", \"images\": [");
+					for (int j = 0; j < s.imageTitles.length; j++)
+						out.print((j > 0 ? ", " : "") + "{\"title\": " +
+							quoteJSON(s.imageTitles[j]) + ", \"bytes\": " + s.imageSizes[j] +
+							"}");
+					out.print("]}");
+					out.println(i + 1 < list.size() ? "," : "");
+				}
+				out.println("]");
+			}
+			else {
+				out.println("time,heapUsed,heapCommitted,heapMax,nonHeapUsed,"
+					+ "bufferUsed,gcCount,gcMillis,allocatedPerSecond,imageBytes,images");
+				for (final Sample s : list) {
+					final StringBuilder images = new StringBuilder();
+					for (int j = 0; j < s.imageTitles.length; j++)
+						images.append(j > 0 ? ";" : "").append(s.imageTitles[j]).append(
+							'=').append(s.imageSizes[j]);
+					out.println(s.time + "," + s.heapUsed + "," + s.heapCommitted + ","
+						+ s.heapMax + "," + s.nonHeapUsed + "," + s.bufferUsed + ","
+						+ s.gcCount + "," + s.gcMillis + "," + s.allocatedPerSecond + ","
+						+ s.imageBytes + "," + quoteCSV(images.toString()));
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static String quoteCSV(final String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 &&
+				value.indexOf('\n') < 0)
+			return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String quoteJSON(final String value) {
+		final StringBuilder builder = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				builder.append('\\').append(c);
+			else if (c < 0x20)
+				builder.append(String.format("\\u%04x", (int)c));
+			else
+				builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+
+	static String format(final Sample s) {
+		return "Heap: " + s.heapUsed / MB + " MB used, " + s.heapCommitted / MB
+			+ " MB committed, " + s.heapMax / MB + " MB max\n"
+			+ "Off-heap: " + s.nonHeapUsed / MB + " MB (JVM), " + s.bufferUsed / MB
+			+ " MB (direct/mapped buffers)\n"
+			+ "Working set after last GC: " + getWorkingSet() / MB + " MB\n"
+			+ "Allocation rate: " + s.allocatedPerSecond / MB + " MB/s\n"
+			+ "Images: " + s.imageBytes / MB + " MB\n";
+	}
+
+	private static class MonitorFrame extends PlugInFrame implements
+			ActionListener {
+		private final TextArea text = new TextArea(30, 72);
+		private final Timer refresh = new Timer("Memory monitor refresh", true);
+
+		MonitorFrame() {
+			super("Memory Monitor");
+			text.setEditable(false);
+			text.setFont(new Font("Monospaced", Font.PLAIN, 12));
+			add(text, BorderLayout.CENTER);
+			final Panel buttons = new Panel();
+			for (final String label : new String[] { "Export CSV...",
+					"Export JSON..." }) {
+				final Button button = new Button(label);
+				button.addActionListener(this);
+				buttons.add(button);
+			}
+			add(buttons, BorderLayout.SOUTH);
+			pack();
+			refresh.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					final String report = getReport();
+					java.awt.EventQueue.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							text.setText(report);
+						}
+					});
+				}
+			}, 0, 1000);
+		}
+
+		private String getReport() {
+			final StringBuilder builder = new StringBuilder();
+			builder.append(format(getLatest()));
+
+			builder.append("\nRecent garbage collections (per second):\n");
+			final List<Sample> list = getSamples();
+			int shown = 0;
+			for (int i = list.size() - 1; i >= 0 && shown < 10; i--) {
+				final Sample s = list.get(i);
+				if (s.gcCount == 0)
+					continue;
+				builder.append(String.format("  %tT  %d collection(s), %d ms\n",
+					s.time, s.gcCount, s.gcMillis));
+				shown++;
+			}
+			if (shown == 0)
+				builder.append("  (none)\n");
+
+			builder.append("\nImages:\n");
+			final int[] ids = WindowManager.getIDList();
+			if (ids == null)
+				builder.append("  (none)\n");
+			else
+				for (final int id : ids) {
+					final ImagePlus imp = WindowManager.getImage(id);
+					if (imp != null)
+						builder.append(String.format("  %8.1f MB  %s\n",
+							imp.getSizeInBytes() / MB, imp.getTitle()));
+				}
+			return builder.toString();
+		}
+
+		@Override
+		public void actionPerformed(final ActionEvent e) {
+			final boolean json = e.getActionCommand().contains("JSON");
+			final FileDialog dialog = new FileDialog(this, e.getActionCommand(),
+				FileDialog.SAVE);
+			dialog.setFile(json ? "memory.json" : "memory.csv");
+			dialog.setVisible(true);
+			if (dialog.getFile() == null)
+				return;
+			try {
+				export(new File(dialog.getDirectory(), dialog.getFile()));
+			} catch (final IOException exception) {
+				IJ.handleException(exception);
+			}
+		}
+
+		@Override
+		public void close() {
+			refresh.cancel();
+			super.close();
+		}
+	}
+}
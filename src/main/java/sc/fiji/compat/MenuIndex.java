@@ -0,0 +1,134 @@
+package sc.fiji.compat;
+
+import java.awt.Menu;
+import java.awt.MenuBar;
+import java.awt.MenuContainer;
+import java.awt.MenuItem;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An index of the labels of AWT menu items, per {@link MenuContainer}.
+ * <p>
+ * Walking a menu path with {@link FijiTools#getMenuItem(String)} used to
+ * compare every label at every level. With thousands of commands, and
+ * {@code Help>Refresh Menus} calling it for every installed item, that adds
+ * up. This index maps labels to items per menu bar or menu so that each level
+ * is a hash lookup instead.
+ * </p>
+ * <p>
+ * Menus are also modified behind our back, by ImageJ 1.x in particular.
+ * Therefore, every hit is validated (the item must still be a child of the
+ * container, with the same label), and the container's index is rebuilt with
+ * a single linear walk, which is all the old code did for each lookup anyway,
+ * when a hit turns out to be stale or when a miss happens after the number of
+ * items changed. A miss in an unchanged container is answered from the index,
+ * so looking for items that do not exist (yet) stays cheap, unless the caller
+ * is about to create the item upon a miss: as ImageJ 1.x may have relabeled
+ * an item in place, or removed one and added another, such a miss is verified
+ * by rebuilding the container's index lest a duplicate be created. Items are
+ * only referenced weakly so that discarded menu bars (e.g. after
+ * {@code Help>Refresh Menus}) can be garbage collected.
+ * </p>
+ */
+class MenuIndex {
+
+	private static final Map<MenuContainer, Index> index =
+		new WeakHashMap<MenuContainer, Index>();
+
+	private static class Index {
+		private final Map<String, WeakReference<MenuItem>> items;
+		/** The number of items when this index was last up to date. */
+		private int count;
+
+		private Index(final Map<String, WeakReference<MenuItem>> items,
+				final int count) {
+			this.items = items;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Looks up the item with the given label in the menu bar or, if that is
+	 * null, in the menu.
+	 *
+	 * @param verifyMiss whether to rebuild the index before reporting a miss,
+	 *          e.g. because the caller will create the item otherwise
+	 * @return the first item with that label, or null
+	 */
+	static synchronized MenuItem get(final MenuBar menuBar, final Menu menu,
+			final String label, final boolean verifyMiss) {
+		final MenuContainer container = menuBar != null ? menuBar : menu;
+		Index current = index.get(container);
+		if (current != null) {
+			final WeakReference<MenuItem> reference = current.items.get(label);
+			final MenuItem item = validate(container, reference, label);
+			if (item != null)
+				return item;
+			if (reference == null && !verifyMiss &&
+					current.count == getCount(menuBar, menu))
+				return null;
+		}
+		current = rebuild(menuBar, menu);
+		return validate(container, current.items.get(label), label);
+	}
+
+	/**
+	 * Records an item that was just added to the given container.
+	 */
+	static synchronized void add(final MenuContainer container,
+			final MenuItem item) {
+		final Index current = index.get(container);
+		if (current == null)
+			return; // will be indexed upon first lookup
+		final String label = item.getLabel();
+		if (validate(container, current.items.get(label), label) == null) {
+			current.items.put(label, new WeakReference<MenuItem>(item));
+		}
+		// only if nothing else changed the container since we last looked
+		final int count = container instanceof MenuBar ?
+			getCount((MenuBar)container, null) : getCount(null, (Menu)container);
+		if (current.count == count - 1)
+			current.count = count;
+	}
+
+	/**
+	 * Forgets everything; the index will be rebuilt lazily.
+	 */
+	static synchronized void clear() {
+		index.clear();
+	}
+
+	private static MenuItem validate(final MenuContainer container,
+			final WeakReference<MenuItem> reference, final String label) {
+		final MenuItem item = reference == null ? null : reference.get();
+		if (item == null || item.getParent() != container ||
+				!label.equals(item.getLabel()))
+			return null;
+		return item;
+	}
+
+	private static int getCount(final MenuBar menuBar, final Menu menu) {
+		return menuBar != null ? menuBar.getMenuCount() : menu.getItemCount();
+	}
+
+	private static Index rebuild(final MenuBar menuBar, final Menu menu) {
+		final int count = getCount(menuBar, menu);
+		final Map<String, WeakReference<MenuItem>> items =
+			new HashMap<String, WeakReference<MenuItem>>(2 * count + 1);
+		for (int i = 0; i < count; i++) {
+			final MenuItem item = menuBar != null ?
+				menuBar.getMenu(i) : menu.getItem(i);
+			final String label = item.getLabel();
+			// the first item with a given label wins, as in a linear search
+			if (label != null && !items.containsKey(label)) {
+				items.put(label, new WeakReference<MenuItem>(item));
+			}
+		}
+		final Index result = new Index(items, count);
+		index.put(menuBar != null ? menuBar : menu, result);
+		return result;
+	}
+}
@@ -1,12 +1,10 @@
 package sc.fiji.compat;
 
 import ij.IJ;
-import ij.Menus;
 import ij.Prefs;
 import ij.plugin.PlugIn;
 
 import java.awt.Menu;
-import java.util.Hashtable;
 
 import fiji.Main;
 
@@ -25,31 +23,50 @@ public void run(final String arg) {
 
 	@Override
 	public void run() {
+		// ImageJ 1.x may have rebuilt the menu bar from scratch
+		MenuIndex.clear();
+		// ... and replaced the class loader
+		if (IJ.debugMode)
+			IJ.log(ReflectionCache.getStatistics());
+		ReflectionCache.clear();
+		// ... and the command table
+		CommandRegistry.refresh();
 		overrideCommands();
 		SampleImageLoader.install();
 		Main.installRecentCommands();
 	}
 
-	@SuppressWarnings("unchecked")
 	static void overrideCommands() {
-		final Hashtable<String, String> commands = Menus.getCommands();
-		if (!commands.containsKey("Install PlugIn...")) {
-			commands.put("Install PlugIn...", "sc.fiji.compat.PlugInInstaller");
-			if (IJ.getInstance() != null) {
-				final Menu plugins = FijiTools.getMenu("Plugins");
-				if (plugins != null)
-					for (int i = 0; i < plugins.getItemCount(); i++)
-						if (plugins.getItem(i).getLabel().equals("-")) {
-							plugins.insert("Install PlugIn...", i);
-							plugins.getItem(i).addActionListener(
-									IJ.getInstance());
-							break;
-						}
+		final boolean[] insertInstaller = new boolean[1];
+		// update the command table in one go, the menus afterwards
+		CommandRegistry.batch(new Runnable() {
+			public void run() {
+				if (!CommandRegistry.containsKey("Install PlugIn...")) {
+					CommandRegistry.put("Install PlugIn...", "sc.fiji.compat.PlugInInstaller");
+					insertInstaller[0] = true;
+				}
+				CommandRegistry.put("Compile and Run...", "sc.fiji.compat.Compile_and_Run");
+				// make sure "Edit>Options>Memory & Threads runs Fiji's plugin
+				CommandRegistry.put("Memory & Threads...", "sc.fiji.compat.Memory");
 			}
+		});
+		if (insertInstaller[0] && IJ.getInstance() != null) {
+			final Menu plugins = FijiTools.getMenu("Plugins");
+			if (plugins != null)
+				for (int i = 0; i < plugins.getItemCount(); i++)
+					if (plugins.getItem(i).getLabel().equals("-")) {
+						plugins.insert("Install PlugIn...", i);
+						plugins.getItem(i).addActionListener(
+								IJ.getInstance());
+						break;
+					}
 		}
-		commands.put("Compile and Run...", "sc.fiji.compat.Compile_and_Run");
-		// make sure "Edit>Options>Memory & Threads runs Fiji's plugin
-		commands.put("Memory & Threads...", "sc.fiji.compat.Memory");
+		if (!CommandRegistry.containsKey("Memory & Threads (Auto)..."))
+			FijiTools.installPlugin("Edit>Options",
+				"Memory & Threads (Auto)...", "sc.fiji.compat.Memory(\"auto\")");
+		if (!CommandRegistry.containsKey("Memory Monitor..."))
+			FijiTools.installPlugin("Edit>Options", "Memory Monitor...",
+				"sc.fiji.compat.MemoryMonitor");
 
 		// disable the Bio-Formats upgrade check
 		Prefs.set("bioformats.upgradeCheck", false);
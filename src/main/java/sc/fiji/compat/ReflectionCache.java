@@ -0,0 +1,172 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches classes and {@link MethodHandle}s looked up via ImageJ 1.x' class
+ * loader.
+ * <p>
+ * The helpers in {@link FijiTools} used to call {@code loadClass()},
+ * {@code getConstructor()} and {@code getMethod()} on every invocation. The
+ * results are now kept for the current class loader; failed lookups are
+ * remembered, too, so that e.g.
+ * {@link FijiTools#runPlugInGently(String, String)} for a class that is not
+ * installed costs a single hash lookup. {@code Help>Refresh Menus} installs a
+ * new class loader and {@link #clear()}s the cache, so that newly installed
+ * plugins are found. As the cached classes and handles reference their class
+ * loader, only the current loader's entries are kept: they are dropped as
+ * soon as ImageJ 1.x' class loader changes, so that the previous loader can
+ * be garbage collected.
+ * </p>
+ */
+class ReflectionCache {
+
+	private interface Resolver {
+		Object resolve(ClassLoader loader) throws ReflectiveOperationException;
+	}
+
+	private final static MethodHandles.Lookup lookup =
+		MethodHandles.publicLookup();
+
+	/** The class loader the cached entries were resolved with. */
+	private static ClassLoader cachedLoader;
+	private final static Map<String, Object> cache =
+		new HashMap<String, Object>();
+
+	private final static AtomicLong hits = new AtomicLong();
+	private final static AtomicLong misses = new AtomicLong();
+	private final static AtomicLong lookupNanos = new AtomicLong();
+
+	/**
+	 * Loads a class via ImageJ 1.x' class loader.
+	 */
+	static Class<?> loadClass(final String className)
+			throws ClassNotFoundException {
+		try {
+			return (Class<?>)get("class " + className, new Resolver() {
+				@Override
+				public Object resolve(final ClassLoader loader)
+						throws ClassNotFoundException {
+					return loader.loadClass(className);
+				}
+			});
+		} catch (final ClassNotFoundException e) {
+			throw e;
+		} catch (final ReflectiveOperationException e) {
+			throw new ClassNotFoundException(className, e);
+		}
+	}
+
+	/**
+	 * Looks up a public constructor.
+	 */
+	static MethodHandle getConstructor(final String className,
+			final Class<?>... parameterTypes)
+			throws ReflectiveOperationException {
+		return (MethodHandle)get(key("new", className, null, parameterTypes),
+			new Resolver() {
+				@Override
+				public Object resolve(final ClassLoader loader)
+						throws ReflectiveOperationException {
+					return lookup.unreflectConstructor(
+						loadClass(className).getConstructor(parameterTypes));
+				}
+			});
+	}
+
+	/**
+	 * Looks up a public (static or instance) method.
+	 */
+	static MethodHandle getMethod(final String className,
+			final String methodName, final Class<?>... parameterTypes)
+			throws ReflectiveOperationException {
+		return (MethodHandle)get(key("method", className, methodName,
+				parameterTypes), new Resolver() {
+			@Override
+			public Object resolve(final ClassLoader loader)
+					throws ReflectiveOperationException {
+				return lookup.unreflect(loadClass(className).getMethod(methodName,
+					parameterTypes));
+			}
+		});
+	}
+
+	/**
+	 * Forgets everything, e.g. after the class loader was replaced.
+	 */
+	static synchronized void clear() {
+		cache.clear();
+		cachedLoader = null;
+	}
+
+	/** @return the number of lookups answered from the cache */
+	static long getHits() {
+		return hits.get();
+	}
+
+	/** @return the number of lookups that had to be resolved */
+	static long getMisses() {
+		return misses.get();
+	}
+
+	/** @return the accumulated time spent resolving misses, in nanoseconds */
+	static long getLookupNanos() {
+		return lookupNanos.get();
+	}
+
+	static String getStatistics() {
+		return "Reflection cache: " + hits.get() + " hits, " + misses.get()
+			+ " misses (" + lookupNanos.get() / 1000000 + " ms)";
+	}
+
+	private static Object get(final String key, final Resolver resolver)
+			throws ReflectiveOperationException {
+		final ClassLoader loader = IJ.getClassLoader();
+		Object result;
+		synchronized (ReflectionCache.class) {
+			if (loader != cachedLoader) {
+				cache.clear();
+				cachedLoader = loader;
+			}
+			result = cache.get(key);
+		}
+		if (result != null)
+			hits.incrementAndGet();
+		else {
+			misses.incrementAndGet();
+			final long start = System.nanoTime();
+			try {
+				result = resolver.resolve(loader);
+			} catch (final ReflectiveOperationException e) {
+				result = e;
+			}
+			lookupNanos.addAndGet(System.nanoTime() - start);
+			synchronized (ReflectionCache.class) {
+				// unless the loader was replaced in the meantime
+				if (loader == cachedLoader)
+					cache.put(key, result);
+			}
+		}
+		if (result instanceof ReflectiveOperationException)
+			throw (ReflectiveOperationException)result;
+		return result;
+	}
+
+	private static String key(final String kind, final String className,
+			final String methodName, final Class<?>[] parameterTypes) {
+		final StringBuilder builder = new StringBuilder(kind).append(' ')
+			.append(className);
+		if (methodName != null)
+			builder.append('#').append(methodName);
+		builder.append('(');
+		for (final Class<?> type : parameterTypes)
+			builder.append(type.getName()).append(',');
+		return builder.append(')').toString();
+	}
+}
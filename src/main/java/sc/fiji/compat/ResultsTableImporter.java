@@ -0,0 +1,572 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.io.OpenDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a saved ImageJ results table, or any tab or comma-separated file.
+ * <p>
+ * This is the engine behind {@code macros/ImportResultsTable.txt}, which used
+ * to read the whole file into a string, split it into lines and then split
+ * every line, i.e. it held several copies of the file in memory. Instead, the
+ * file is read in chunks that start at line boundaries, and the chunks are
+ * parsed in parallel: a first pass counts the rows of each chunk, a second
+ * pass parses each chunk's rows straight into primitive {@code double[]}
+ * columns, which are then handed to the {@link ResultsTable} as-are. The
+ * chunks are read into heap buffers that are reused, rather than
+ * memory-mapped, as a mapping would keep the file from being overwritten or
+ * deleted (on Windows) until it is garbage-collected.
+ * </p>
+ * <p>
+ * Whether a column is numeric is decided by the first rows; cells of numeric
+ * columns that turn out not to be numbers become NaN. Cells may be quoted,
+ * but quoted cells must not contain line breaks.
+ * </p>
+ */
+public class ResultsTableImporter implements PlugIn {
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** How many rows to look at to tell numeric from text columns. */
+	private final static int SAMPLE_ROWS = 1000;
+
+	/** The maximal size of a chunk. */
+	private final static long MAX_CHUNK = 64 << 20;
+
+	private final File file;
+	private final int threads;
+
+	private FileChannel channel;
+	/** Buffers for the chunks, reused by the parsing threads. */
+	private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private String[] headings;
+	private boolean[] numeric;
+	/** The number of leading cells to skip (ImageJ's row numbers). */
+	private int skip;
+	private int unparseable;
+
+	private static class Chunk {
+		final long start, end;
+		int rows, firstRow;
+
+		Chunk(final long start, final long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	public ResultsTableImporter() {
+		this(null, Prefs.getThreads());
+	}
+
+	public ResultsTableImporter(final File file, final int threads) {
+		this.file = file;
+		this.threads = Math.max(1, threads);
+	}
+
+	@Override
+	public void run(final String arg) {
+		String path = arg;
+		if (path == null || path.equals("")) {
+			final OpenDialog dialog = new OpenDialog("Import Results Table", null);
+			if (dialog.getFileName() == null)
+				return;
+			path = dialog.getDirectory() + dialog.getFileName();
+		}
+		open(path);
+	}
+
+	/**
+	 * Entry point for the macro's {@code call()}: imports the file and shows
+	 * the table.
+	 *
+	 * @return the title of the table, or the empty string upon error
+	 */
+	public static String open(final String path) {
+		final File file = new File(path);
+		try {
+			final ResultsTableImporter importer =
+				new ResultsTableImporter(file, Prefs.getThreads());
+			final ResultsTable table = importer.read();
+			if (importer.unparseable > 0)
+				IJ.log("Import Results Table: " + importer.unparseable
+					+ " cells of numeric columns were not numbers");
+			// like the macro: numeric data goes to the Results table
+			final boolean isResults = importer.skip > 0 || importer.isAllNumeric();
+			final String title = isResults ? "Results" : file.getName();
+			if (isResults)
+				Analyzer.setResultsTable(table);
+			table.show(title);
+			return title;
+		} catch (IOException e) {
+			IJ.error("Import Results Table", e.getMessage());
+			return "";
+		}
+	}
+
+	/**
+	 * Reads the file into a new {@link ResultsTable}, without showing it.
+	 */
+	public ResultsTable read() throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			channel = raf.getChannel();
+			final long size = channel.size();
+			final long dataStart = readHeader(size);
+			final List<Chunk> chunks = split(dataStart, size);
+			inferTypes(chunks.isEmpty() ? null : chunks.get(0));
+
+			final ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				final List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+				for (final Chunk chunk : chunks)
+					counts.add(executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() throws IOException {
+							return parse(chunk, null, null);
+						}
+					}));
+				int rows = 0;
+				for (int i = 0; i < chunks.size(); i++) {
+					chunks.get(i).firstRow = rows;
+					chunks.get(i).rows = get(counts.get(i));
+					rows += chunks.get(i).rows;
+				}
+
+				final ResultsTable table = new ResultsTable(rows);
+				if (skip > 0)
+					table.setDefaultHeadings();
+				final int capacity = Math.max(rows, getMaxRows(table));
+				final double[][] numbers = new double[headings.length][];
+				final String[][] strings = new String[headings.length][];
+				for (int j = 0; j < headings.length; j++)
+					if (numeric[j])
+						numbers[j] = new double[capacity];
+					else
+						strings[j] = new String[rows];
+
+				final List<Future<Integer>> parsed = new ArrayList<Future<Integer>>();
+				for (final Chunk chunk : chunks)
+					parsed.add(executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() throws IOException {
+							return parse(chunk, numbers, strings);
+						}
+					}));
+				for (final Future<Integer> future : parsed)
+					unparseable += get(future);
+
+				fill(table, rows, numbers, strings);
+				return table;
+			}
+			finally {
+				executor.shutdown();
+			}
+		}
+		finally {
+			raf.close();
+			channel = null;
+			buffers.clear();
+		}
+	}
+
+	private boolean isAllNumeric() {
+		for (final boolean b : numeric)
+			if (!b)
+				return false;
+		return true;
+	}
+
+	/*
+	 * Reads the column headings; returns the offset of the first data row.
+	 */
+	private long readHeader(final long size) throws IOException {
+		long end = findLineStart(0, size);
+		final ByteBuffer buffer = read(0, end);
+		final List<String> cells = new ArrayList<String>();
+		int lineEnd = (int)end;
+		while (lineEnd > 0 && (buffer.get(lineEnd - 1) == '\n' ||
+				buffer.get(lineEnd - 1) == '\r'))
+			lineEnd--;
+		for (int start = 0; start <= lineEnd;) {
+			final int cellEnd = findCellEnd(buffer, start, lineEnd);
+			cells.add(decode(buffer, start, cellEnd));
+			start = cellEnd + 1;
+		}
+		if (cells.size() < 2)
+			throw new IOException("This is not a tab or comma delimited text file.");
+		// an ImageJ Results table: skip the row numbers
+		skip = cells.get(0).equals(" ") || cells.get(0).equals("") ? 1 : 0;
+		headings = cells.subList(skip, cells.size()).toArray(new String[0]);
+		release(buffer);
+		return end;
+	}
+
+	/*
+	 * Splits the data into chunks of roughly equal size that start at line
+	 * boundaries.
+	 */
+	private List<Chunk> split(final long start, final long size)
+			throws IOException {
+		final long count = Math.max(4 * threads, (size - start) / MAX_CHUNK + 1);
+		final long step = Math.max(1, Math.min(MAX_CHUNK, (size - start) / count + 1));
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		for (long offset = start; offset < size;) {
+			final long end = offset + step >= size ? size :
+				findLineStart(offset + step, size);
+			chunks.add(new Chunk(offset, end));
+			offset = end;
+		}
+		return chunks;
+	}
+
+	/*
+	 * Returns the offset after the next line break at or after the given
+	 * offset.
+	 */
+	private long findLineStart(long offset, final long size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(8192);
+		while (offset < size) {
+			buffer.clear();
+			final int count = channel.read(buffer, offset);
+			if (count <= 0)
+				break;
+			for (int i = 0; i < count; i++)
+				if (buffer.get(i) == '\n')
+					return offset + i + 1;
+			offset += count;
+		}
+		return size;
+	}
+
+	/*
+	 * Decides which columns are numeric by looking at the first rows.
+	 */
+	private void inferTypes(final Chunk first) throws IOException {
+		numeric = new boolean[headings.length];
+		for (int j = 0; j < numeric.length; j++)
+			numeric[j] = true;
+		if (first == null)
+			return;
+		final ByteBuffer buffer = read(first.start, first.end);
+		final int end = buffer.limit();
+		for (int start = 0, row = 0; start < end && row < SAMPLE_ROWS;) {
+			int lineEnd = start;
+			while (lineEnd < end && buffer.get(lineEnd) != '\n')
+				lineEnd++;
+			final int next = lineEnd + 1;
+			if (lineEnd > start && buffer.get(lineEnd - 1) == '\r')
+				lineEnd--;
+			if (lineEnd > start) {
+				for (int cell = 0, cellStart = start; cellStart <= lineEnd; cell++) {
+					final int cellEnd = findCellEnd(buffer, cellStart, lineEnd);
+					final int j = cell - skip;
+					if (j >= 0 && j < numeric.length && numeric[j] &&
+							cellEnd > cellStart && Double.isNaN(parseDouble(buffer,
+								cellStart, cellEnd)) && !isNaN(buffer, cellStart, cellEnd))
+						numeric[j] = false;
+					cellStart = cellEnd + 1;
+				}
+				row++;
+			}
+			start = next;
+		}
+		release(buffer);
+	}
+
+	/*
+	 * Counts the rows of a chunk (if numbers is null), or parses them into the
+	 * columns; returns the number of rows or of unparseable cells, respectively.
+	 */
+	private int parse(final Chunk chunk, final double[][] numbers,
+			final String[][] strings) throws IOException {
+		final ByteBuffer buffer = read(chunk.start, chunk.end);
+		final int end = buffer.limit();
+		final int firstRow = numbers == null ? 0 : chunk.firstRow;
+		int row = firstRow, unparseable = 0;
+		for (int start = 0; start < end;) {
+			int lineEnd = start;
+			while (lineEnd < end && buffer.get(lineEnd) != '\n')
+				lineEnd++;
+			final int next = lineEnd + 1;
+			if (lineEnd > start && buffer.get(lineEnd - 1) == '\r')
+				lineEnd--;
+			if (lineEnd > start) {
+				if (numbers != null) {
+					int cell = 0;
+					for (int cellStart = start; cellStart <= lineEnd; cell++) {
+						final int cellEnd = findCellEnd(buffer, cellStart, lineEnd);
+						final int j = cell - skip;
+						if (j >= 0 && j < headings.length) {
+							if (numbers[j] != null) {
+								final double value = parseDouble(buffer, cellStart, cellEnd);
+								numbers[j][row] = value;
+								if (Double.isNaN(value) && cellEnd > cellStart &&
+										!isNaN(buffer, cellStart, cellEnd))
+									unparseable++;
+							}
+							else
+								strings[j][row] = decode(buffer, cellStart, cellEnd);
+						}
+						cellStart = cellEnd + 1;
+					}
+					// missing cells
+					for (int j = Math.max(0, cell - skip); j < headings.length; j++)
+						if (numbers[j] != null)
+							numbers[j][row] = Double.NaN;
+				}
+				row++;
+			}
+			start = next;
+		}
+		release(buffer);
+		return numbers == null ? row - firstRow : unparseable;
+	}
+
+	/*
+	 * Reads a part of the file into a buffer, which should be passed to
+	 * release() when done.
+	 */
+	private ByteBuffer read(final long start, final long end)
+			throws IOException {
+		if (end - start > Integer.MAX_VALUE)
+			throw new IOException("Line too long");
+		final int length = (int)(end - start);
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null || buffer.capacity() < length)
+			buffer = ByteBuffer.allocate(length);
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, start + buffer.position()) < 0)
+				throw new IOException("Truncated file");
+		buffer.flip();
+		return buffer;
+	}
+
+	private void release(final ByteBuffer buffer) {
+		buffers.offer(buffer);
+	}
+
+	/*
+	 * Hands the columns to the table: numeric ones directly (if ImageJ 1.x'
+	 * internals are as expected), text cells one by one.
+	 */
+	private void fill(final ResultsTable table, final int rows,
+			final double[][] numbers, final String[][] strings) {
+		final double[][] columns = getColumns(table);
+		for (int j = 0; j < headings.length; j++) {
+			if (strings[j] != null && headings[j].equals("Label")) {
+				for (int row = 0; row < rows; row++)
+					table.setLabel(strings[j][row], row);
+				continue;
+			}
+			int column = table.getColumnIndex(headings[j]);
+			if (column == ResultsTable.COLUMN_NOT_FOUND)
+				column = table.getFreeColumn(headings[j]);
+			if (column < 0)
+				continue; // duplicate heading
+			if (rows > 0)
+				table.setValue(column, 0, 0); // allocates the column
+			if (numbers[j] != null) {
+				if (columns != null && column < columns.length &&
+						columns[column] != null &&
+						columns[column].length <= numbers[j].length)
+					columns[column] = numbers[j];
+				else
+					for (int row = 0; row < rows; row++)
+						table.setValue(column, row, numbers[j][row]);
+			}
+			else
+				for (int row = 0; row < rows; row++)
+					table.setValue(column, row, strings[j][row]);
+		}
+	}
+
+	private static double[][] getColumns(final ResultsTable table) {
+		try {
+			final Field field = ResultsTable.class.getDeclaredField("columns");
+			field.setAccessible(true);
+			return (double[][])field.get(table);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
+	private static int getMaxRows(final ResultsTable table) {
+		try {
+			final Field field = ResultsTable.class.getDeclaredField("maxRows");
+			field.setAccessible(true);
+			return field.getInt(table);
+		} catch (Throwable t) {
+			return 0;
+		}
+	}
+
+	private static <T> T get(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/*
+	 * Returns the offset of the comma or tab ending the cell starting at the
+	 * given offset (or the end of the line), skipping quoted separators.
+	 */
+	private static int findCellEnd(final ByteBuffer buffer, int offset,
+			final int end) {
+		boolean quoted = false;
+		for (; offset < end; offset++) {
+			final byte b = buffer.get(offset);
+			if (b == '"')
+				quoted = !quoted;
+			else if (!quoted && (b == ',' || b == '\t'))
+				break;
+		}
+		return offset;
+	}
+
+	private static String decode(final ByteBuffer buffer, int start, int end) {
+		if (end - start >= 2 && buffer.get(start) == '"' &&
+				buffer.get(end - 1) == '"') {
+			start++;
+			end--;
+		}
+		final byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(start + i);
+		final String string = new String(bytes, UTF8);
+		return string.indexOf("\"\"") < 0 ? string : string.replace("\"\"", "\"");
+	}
+
+	private static boolean isNaN(final ByteBuffer buffer, final int start,
+			final int end) {
+		return end - start == 3 && (buffer.get(start) | 0x20) == 'n' &&
+			(buffer.get(start + 1) | 0x20) == 'a' &&
+			(buffer.get(start + 2) | 0x20) == 'n';
+	}
+
+	private final static double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+		1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/**
+	 * Parses a number without allocating.
+	 * <p>
+	 * Numbers with up to 15 significant digits and a decimal exponent of at
+	 * most 22 are converted exactly (the mantissa and the power of ten are
+	 * both exact doubles, so a single, correctly rounded multiplication or
+	 * division suffices). Everything else is left to
+	 * {@link Double#parseDouble(String)}.
+	 * </p>
+	 *
+	 * @return the number, or NaN if the cell is empty or not a number
+	 */
+	static double parseDouble(final ByteBuffer buffer, int start, int end) {
+		while (start < end && buffer.get(start) == ' ')
+			start++;
+		while (end > start && buffer.get(end - 1) == ' ')
+			end--;
+		if (start == end)
+			return Double.NaN;
+		int i = start;
+		boolean negative = false;
+		if (buffer.get(i) == '-' || buffer.get(i) == '+')
+			negative = buffer.get(i++) == '-';
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false;
+		for (; i < end; i++) {
+			final int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				break;
+			any = true;
+			if (mantissa == 0 && digit == 0)
+				continue;
+			if (++digits > 15)
+				return slowParse(buffer, start, end);
+			mantissa = 10 * mantissa + digit;
+		}
+		if (i < end && buffer.get(i) == '.')
+			for (i++; i < end; i++) {
+				final int digit = buffer.get(i) - '0';
+				if (digit < 0 || digit > 9)
+					break;
+				any = true;
+				exponent--;
+				if (mantissa == 0 && digit == 0)
+					continue;
+				if (++digits > 15)
+					return slowParse(buffer, start, end);
+				mantissa = 10 * mantissa + digit;
+			}
+		if (!any)
+			return slowParse(buffer, start, end);
+		if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+			int e = 0;
+			boolean negativeExponent = false;
+			i++;
+			if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+				negativeExponent = buffer.get(i++) == '-';
+			if (i == end)
+				return Double.NaN;
+			for (; i < end; i++) {
+				final int digit = buffer.get(i) - '0';
+				if (digit < 0 || digit > 9 || e > 1000)
+					return slowParse(buffer, start, end);
+				e = 10 * e + digit;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != end)
+			return slowParse(buffer, start, end);
+		double value;
+		if (mantissa == 0)
+			value = 0;
+		else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+			value = mantissa * POWERS_OF_TEN[exponent];
+		else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		else
+			return slowParse(buffer, start, end);
+		return negative ? -value : value;
+	}
+
+	private static double slowParse(final ByteBuffer buffer, final int start,
+			final int end) {
+		final String string = decode(buffer, start, end).trim();
+		try {
+			return Double.parseDouble(string);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,687 @@
+package sc.fiji.compat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scijava.util.DigestUtils;
+
+/**
+ * A content-addressed cache for the sample images.
+ * <p>
+ * Every sample is stored as {@code objects/<sha-256>/<name>}, i.e. the
+ * directory is named after the checksum of the content while the file keeps
+ * its original name (which ImageJ 1.x uses to determine the file type and the
+ * image title). The {@code manifest.txt} maps each URL to its checksum, size
+ * and last access time, one tab-separated line per sample. The access time is
+ * only needed for eviction, so it is written at most once an hour per sample,
+ * rather than on every access. Files are verified against the manifest upon
+ * opening: the size every time, the SHA-256 once per session. Samples stored
+ * directly in the cache directory, as older versions did, are used where they
+ * are, and moved into the cache on a background thread.
+ * </p>
+ * <p>
+ * The cache lives in {@code <ij.dir>/samples/} unless the
+ * {@code fiji.samples.cache.dir} system property says otherwise. If that
+ * directory is not writable (as is common for installations shared via NFS),
+ * it is still consulted first, but new samples are downloaded into
+ * {@code ~/.imagej/samples/}. Manifest updates are protected by a file lock
+ * so that many users (or Fiji instances) can share one cache. If the
+ * {@code fiji.samples.cache.max} system property specifies a size in
+ * megabytes, the least recently accessed samples are evicted when that size
+ * is exceeded.
+ * </p>
+ * <p>
+ * To tell which samples are cached (e.g. to enable {@code Cache Sample
+ * Images}), the cache directory is scanned once and the result is shared by
+ * all queries instead of testing every sample's file, which costs a round trip
+ * per file on NFS. A {@link WatchService} marks the scan as stale when files
+ * change. As it only sees changes made by this machine (not those of other NFS
+ * clients), the scan is also trusted for only a second at a time and then
+ * revalidated by the directories' modification times. Opening a sample still
+ * verifies its file.
+ * </p>
+ */
+class SampleCache {
+	private final static String MANIFEST = "manifest.txt";
+	private final static String LOCK = "manifest.lock";
+
+	private static SampleCache instance;
+
+	private final File directory;
+	private final boolean writable;
+	private final long maxSize;
+	private final SampleCache next;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private long manifestModified = -1;
+	private final Set<String> verified = new HashSet<String>();
+	private boolean migrationStarted;
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	/** How long a scan is trusted without checking the modification times. */
+	private final static long LISTING_TTL = 1000;
+
+	/** How old a recorded access time needs to be to be updated. */
+	private final static long TOUCH_INTERVAL = 60 * 60 * 1000;
+
+	/*
+	 * The sizes of the legacy samples and of the objects, by path relative to
+	 * the cache directory; null when it needs to be rescanned.
+	 */
+	private Map<String, Long> listing;
+	private long listingStamp, listingChecked;
+	private volatile boolean listingStale = true;
+	private WatchService watcher;
+	private boolean watchAttempted;
+	private final Set<Path> watched = new HashSet<Path>();
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+	private static class Entry {
+		private final String url, sha256;
+		private final long size;
+		private long lastAccess;
+
+		private Entry(final String url, final String sha256, final long size,
+				final long lastAccess) {
+			this.url = url;
+			this.sha256 = sha256;
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	SampleCache(final File directory, final long maxSize,
+			final SampleCache next) {
+		this.directory = directory;
+		this.writable = isWritable(directory);
+		this.maxSize = maxSize;
+		this.next = next;
+	}
+
+	/**
+	 * Returns the sample cache of this Fiji installation.
+	 *
+	 * @return the cache, or null if neither {@code fiji.samples.cache.dir} nor
+	 *         {@code ij.dir} are set
+	 */
+	static synchronized SampleCache getInstance() {
+		if (instance == null) {
+			String path = System.getProperty("fiji.samples.cache.dir");
+			if (path == null) {
+				final String ijDir = System.getProperty("ij.dir");
+				if (ijDir == null)
+					return null;
+				path = ijDir + "/samples";
+			}
+			final long maxSize = Long.getLong("fiji.samples.cache.max", 0) << 20;
+			final File directory = new File(path);
+			SampleCache next = null;
+			final String home = System.getProperty("user.home");
+			if (!isWritable(directory) && home != null)
+				next = new SampleCache(new File(home, ".imagej/samples"),
+					maxSize, null);
+			instance = new SampleCache(directory, maxSize, next);
+		}
+		return instance;
+	}
+
+	/** @return how often {@link #get(String)} found a valid sample */
+	long getHits() {
+		return hits.get();
+	}
+
+	/** @return how often {@link #get(String)} came up empty-handed */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Looks up and verifies the cached copy of a sample.
+	 *
+	 * @param url the URL of the sample
+	 * @return the file, or null if the sample is not cached (or was corrupt)
+	 */
+	File get(final String url) {
+		final File file = lookup(url, true);
+		(file != null ? hits : misses).incrementAndGet();
+		return file;
+	}
+
+	/**
+	 * Determines whether a sample is cached, without verifying it.
+	 *
+	 * @param url the URL of the sample
+	 */
+	boolean contains(final String url) {
+		synchronized (this) {
+			if (containsHere(url))
+				return true;
+		}
+		return next != null && next.contains(url);
+	}
+
+	/**
+	 * Registers a task to run (on a background thread) whenever the files of
+	 * this cache (or the next one) change behind our back.
+	 */
+	void addListener(final Runnable listener) {
+		listeners.add(listener);
+		if (next != null)
+			next.addListener(listener);
+	}
+
+	/**
+	 * Returns the file into which the given sample should be downloaded before
+	 * it is handed to {@link #put(String, File)}.
+	 *
+	 * @param url the URL of the sample
+	 */
+	File getIncomingFile(final String url) {
+		if (!writable && next != null)
+			return next.getIncomingFile(url);
+		return new File(directory, "incoming/"
+			+ DigestUtils.bestHex(url).substring(0, 16) + "-" + getName(url));
+	}
+
+	/**
+	 * Adds a downloaded sample to the cache.
+	 *
+	 * @param url the URL of the sample
+	 * @param file the downloaded file; it is moved into the cache
+	 * @return the cached file
+	 */
+	File put(final String url, final File file) throws IOException {
+		if (!writable) {
+			if (next == null)
+				throw new IOException("Sample cache " + directory
+					+ " is not writable");
+			return next.put(url, file);
+		}
+		final Entry entry = new Entry(url, sha256(file), file.length(),
+			System.currentTimeMillis());
+		final File object = getObject(entry);
+		final File parent = object.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not make directory " + parent);
+		move(file, object);
+		synchronized (this) {
+			verified.add(getVerificationKey(object));
+			final FileLock lock = lock();
+			try {
+				readManifest(true);
+				entries.put(url, entry);
+				evict(entry);
+				writeManifest();
+			}
+			finally {
+				lock.channel().close();
+			}
+		}
+		return object;
+	}
+
+	private File lookup(final String url, final boolean verify) {
+		final File file;
+		synchronized (this) {
+			file = lookupHere(url, verify);
+		}
+		if (file != null || next == null)
+			return file;
+		return next.lookup(url, verify);
+	}
+
+	private File lookupHere(final String url, final boolean verify) {
+		try {
+			readManifest(false);
+		} catch (final IOException e) {
+			return null;
+		}
+		final Entry entry = entries.get(url);
+		if (entry == null)
+			return getLegacy(url);
+
+		final File file = getObject(entry);
+		if (file.length() == entry.size && (!verify || verify(entry, file))) {
+			if (verify)
+				touch(entry);
+			return file;
+		}
+
+		// truncated or corrupt
+		if (writable) try {
+			final FileLock lock = lock();
+			try {
+				readManifest(true);
+				final Entry current = entries.get(url);
+				if (current != null && current.sha256.equals(entry.sha256)) {
+					remove(current);
+					writeManifest();
+				}
+			}
+			finally {
+				lock.channel().close();
+			}
+		} catch (final IOException e) {
+			// ignore; we will download it again
+		}
+		return null;
+	}
+
+	private boolean containsHere(final String url) {
+		final Map<String, Long> listing = getListing();
+		if (listing == null)
+			return lookupHere(url, false) != null;
+		final Entry entry = entries.get(url);
+		if (entry == null)
+			return listing.containsKey(getName(url));
+		final Long size = listing.get("objects/" + entry.sha256 + "/"
+			+ getName(entry.url));
+		return size != null && size.longValue() == entry.size;
+	}
+
+	/*
+	 * Returns the current scan of the cache directory, rescanning (and
+	 * re-reading the manifest) only when something changed.
+	 */
+	private Map<String, Long> getListing() {
+		if (!watchAttempted)
+			startWatching();
+		// the watch service misses changes made by other machines
+		if (listing != null && !listingStale) {
+			final long now = System.currentTimeMillis();
+			if (now - listingChecked < LISTING_TTL)
+				return listing;
+			listingChecked = now;
+			if (getListingStamp() == listingStamp)
+				return listing;
+		}
+		// events arriving while scanning must mark the new scan as stale
+		listingStale = false;
+		listingStamp = getListingStamp();
+		listingChecked = System.currentTimeMillis();
+		try {
+			readManifest(false);
+			listing = scan();
+		} catch (final IOException e) {
+			listing = null;
+		}
+		return listing;
+	}
+
+	private long getListingStamp() {
+		return 31 * (31 * directory.lastModified()
+			+ new File(directory, "objects").lastModified())
+			+ new File(directory, MANIFEST).lastModified();
+	}
+
+	/*
+	 * Lists the legacy samples and objects/<sha-256>/<name>, registering the
+	 * directories with the watch service on the way.
+	 */
+	private Map<String, Long> scan() throws IOException {
+		final Map<String, Long> result = new HashMap<String, Long>();
+		final Path root = directory.toPath();
+		if (!Files.isDirectory(root))
+			return result;
+		Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), 3,
+			new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(final Path dir,
+						final BasicFileAttributes attributes) {
+					final Path relative = root.relativize(dir);
+					if (!dir.equals(root) && !relative.startsWith("objects"))
+						return FileVisitResult.SKIP_SUBTREE;
+					watch(dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(final Path file,
+						final BasicFileAttributes attributes) {
+					if (attributes.isRegularFile())
+						result.put(root.relativize(file).toString().replace(
+							File.separatorChar, '/'), attributes.size());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path file,
+						final IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		return result;
+	}
+
+	private void startWatching() {
+		watchAttempted = true;
+		if (!Boolean.parseBoolean(System.getProperty(
+				"fiji.samples.cache.watch", "true")))
+			return;
+		try {
+			watcher = directory.toPath().getFileSystem().newWatchService();
+		} catch (final IOException e) {
+			return;
+		} catch (final UnsupportedOperationException e) {
+			return;
+		}
+		final Thread thread = new Thread("Sample cache watcher") {
+			@Override
+			public void run() {
+				for (;;) {
+					final WatchKey key;
+					try {
+						key = watcher.take();
+					} catch (final InterruptedException e) {
+						return;
+					} catch (final ClosedWatchServiceException e) {
+						return;
+					}
+					key.pollEvents();
+					if (!key.reset())
+						synchronized (SampleCache.this) {
+							watched.remove(key.watchable());
+						}
+					listingStale = true;
+					for (final Runnable listener : listeners)
+						listener.run();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void watch(final Path dir) {
+		if (watcher == null || watched.contains(dir))
+			return;
+		try {
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+			watched.add(dir);
+		} catch (final IOException e) {
+			// fall back to the modification times
+		}
+	}
+
+	/*
+	 * Before the cache was content-addressed, the samples were stored as
+	 * <ij.dir>/samples/<name>. Lookups use them as-are; see migrateLegacy().
+	 */
+	private File getLegacy(final String url) {
+		final File legacy = new File(directory, getName(url));
+		return legacy.isFile() ? legacy : null;
+	}
+
+	/**
+	 * Moves the samples stored before the cache was content-addressed into
+	 * the cache, on a background thread, once per session. Until then, they
+	 * are used where they are.
+	 *
+	 * @param urls the URLs of the samples
+	 */
+	void migrateLegacy(final Collection<String> urls) {
+		synchronized (this) {
+			if (migrationStarted || !writable)
+				return;
+			migrationStarted = true;
+		}
+		final List<String> copy = new ArrayList<String>(urls);
+		final Thread thread = new Thread("Sample cache migration") {
+			@Override
+			public void run() {
+				for (final String url : copy) {
+					final File legacy;
+					synchronized (SampleCache.this) {
+						try {
+							readManifest(false);
+						} catch (final IOException e) {
+							return;
+						}
+						legacy = entries.containsKey(url) ? null : getLegacy(url);
+					}
+					// hashes and moves the file outside of the monitor
+					if (legacy != null) try {
+						put(url, legacy);
+					} catch (final IOException e) {
+						// keep using it where it is
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private boolean verify(final Entry entry, final File file) {
+		final String key = getVerificationKey(file);
+		if (verified.contains(key))
+			return true;
+		try {
+			if (!entry.sha256.equals(sha256(file)))
+				return false;
+		} catch (final IOException e) {
+			return false;
+		}
+		verified.add(key);
+		return true;
+	}
+
+	private static String getVerificationKey(final File file) {
+		return file.getPath() + ":" + file.lastModified();
+	}
+
+	private void touch(final Entry entry) {
+		final long now = System.currentTimeMillis();
+		if (now - entry.lastAccess < TOUCH_INTERVAL)
+			return;
+		entry.lastAccess = now;
+		if (writable) try {
+			final FileLock lock = lock();
+			try {
+				readManifest(true);
+				final Entry current = entries.get(entry.url);
+				if (current != null)
+					current.lastAccess = entry.lastAccess;
+				writeManifest();
+			}
+			finally {
+				lock.channel().close();
+			}
+		} catch (final IOException e) {
+			// ignore: the access time is only used for eviction
+		}
+	}
+
+	private void evict(final Entry keep) {
+		if (maxSize <= 0)
+			return;
+		long total = 0;
+		for (final Entry entry : entries.values())
+			total += entry.size;
+		if (total <= maxSize)
+			return;
+		final List<Entry> list = new ArrayList<Entry>(entries.values());
+		Collections.sort(list, new Comparator<Entry>() {
+			@Override
+			public int compare(final Entry e1, final Entry e2) {
+				return Long.compare(e1.lastAccess, e2.lastAccess);
+			}
+		});
+		for (final Entry entry : list) {
+			if (total <= maxSize)
+				break;
+			if (entry == keep)
+				continue;
+			remove(entry);
+			total -= entry.size;
+		}
+	}
+
+	private void remove(final Entry entry) {
+		entries.remove(entry.url);
+		for (final Entry other : entries.values())
+			if (other.sha256.equals(entry.sha256) &&
+					getName(other.url).equals(getName(entry.url)))
+				return; // still referenced
+		final File object = getObject(entry);
+		object.delete();
+		object.getParentFile().delete(); // only succeeds if empty
+	}
+
+	private File getObject(final Entry entry) {
+		return new File(directory, "objects/" + entry.sha256 + "/"
+			+ getName(entry.url));
+	}
+
+	private FileLock lock() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not make directory " + directory);
+		final RandomAccessFile file =
+			new RandomAccessFile(new File(directory, LOCK), "rw");
+		try {
+			return file.getChannel().lock();
+		} catch (final IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Re-reads the manifest if it changed. Under the lock, pass force = true:
+	 * another process might have written it within the resolution of the
+	 * file system's time stamps.
+	 */
+	private void readManifest(final boolean force) throws IOException {
+		final File manifest = new File(directory, MANIFEST);
+		final long modified = manifest.lastModified();
+		if (!force && modified == manifestModified)
+			return;
+		entries.clear();
+		manifestModified = modified;
+		if (modified == 0)
+			return;
+		final BufferedReader reader = new BufferedReader(
+			new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+		try {
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null)
+					break;
+				final String[] fields = line.split("\t");
+				if (fields.length != 4)
+					continue;
+				try {
+					entries.put(fields[3], new Entry(fields[3], fields[0],
+						Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				} catch (final NumberFormatException e) {
+					// skip corrupt line
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private void writeManifest() throws IOException {
+		final File manifest = new File(directory, MANIFEST);
+		final File tmp = File.createTempFile("manifest-", ".tmp", directory);
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(tmp), "UTF-8"));
+		try {
+			for (final Entry entry : entries.values())
+				out.print(entry.sha256 + "\t" + entry.size + "\t"
+					+ entry.lastAccess + "\t" + entry.url + "\n");
+		}
+		finally {
+			out.close();
+		}
+		move(tmp, manifest);
+		manifestModified = manifest.lastModified();
+		// do not wait for the watch service to notice our own changes
+		listing = null;
+	}
+
+	static String getName(final String url) {
+		return url.substring(url.lastIndexOf('/') + 1);
+	}
+
+	static String sha256(final File file) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		final byte[] buffer = new byte[65536];
+		final InputStream in = new FileInputStream(file);
+		try {
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return DigestUtils.hex(digest.digest());
+	}
+
+	private static void move(final File source, final File target)
+			throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static boolean isWritable(File directory) {
+		while (directory != null && !directory.exists())
+			directory = directory.getParentFile();
+		return directory != null && Files.isWritable(directory.toPath());
+	}
+}
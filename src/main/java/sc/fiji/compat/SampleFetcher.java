@@ -0,0 +1,283 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads sample images concurrently.
+ * <p>
+ * At most {@code parallelism} transfers run at the same time. Each transfer
+ * writes to a {@code sample-<name>.sample} file next to its destination and
+ * only renames it when complete. If a transfer is interrupted, the next
+ * attempt asks the server for the remainder via an HTTP {@code Range} request
+ * and appends to what is already there.
+ * </p>
+ * <p>
+ * The number of concurrent transfers defaults to 4 and can be set via the
+ * {@code fiji.samples.threads} system property.
+ * </p>
+ */
+class SampleFetcher {
+
+	/**
+	 * Receives the progress of a single transfer.
+	 */
+	interface Progress {
+		/**
+		 * @param read the number of bytes present so far
+		 * @param length the total number of bytes, or -1 if unknown
+		 */
+		void update(long read, long length);
+	}
+
+	/** The maximal number of bytes to transfer between progress updates. */
+	static final long CHUNK_SIZE = 1 << 20;
+
+	private final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private final int parallelism;
+	private final boolean logToStderr;
+
+	private long[] read, lengths;
+	private int finished, total, shownPercent, shownFinished;
+
+	SampleFetcher(final int parallelism, final boolean logToStderr) {
+		this.parallelism = Math.max(1, parallelism);
+		this.logToStderr = logToStderr;
+	}
+
+	static int getDefaultParallelism() {
+		return Integer.getInteger("fiji.samples.threads", 4);
+	}
+
+	/**
+	 * Downloads the given samples into the sample cache.
+	 *
+	 * @param cache the sample cache
+	 * @param urls the URLs of the samples
+	 * @throws IOException the first error encountered; the other transfers
+	 *           are completed nevertheless
+	 */
+	void fetch(final SampleCache cache, final List<String> urls)
+			throws IOException {
+		synchronized (this) {
+			total = urls.size();
+			finished = 0;
+			read = new long[total];
+			lengths = new long[total];
+			shownPercent = shownFinished = -1;
+		}
+		if (total == 0)
+			return;
+
+		final AtomicInteger counter = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(
+			Math.min(parallelism, total), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable,
+						"Sample fetcher " + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < total; i++) {
+			final int index = i;
+			final String url = urls.get(i);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					final File incoming = cache.getIncomingFile(url);
+					transfer(new URL(url).openConnection(), incoming,
+						new Progress() {
+							@Override
+							public void update(final long read, final long length) {
+								report(index, read, length);
+							}
+						});
+					cache.put(url, incoming);
+					done(index);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		IOException failure = null;
+		for (final Future<Void> future : futures) try {
+			future.get();
+		} catch (final ExecutionException e) {
+			if (failure != null)
+				continue;
+			final Throwable cause = e.getCause();
+			failure = cause instanceof IOException ? (IOException)cause :
+				new IOException(cause);
+		} catch (final InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching samples");
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private synchronized void report(final int index, final long bytes,
+			final long length) {
+		read[index] = bytes;
+		lengths[index] = length;
+		showProgress();
+	}
+
+	private synchronized void done(final int index) {
+		read[index] = lengths[index] = 1;
+		finished++;
+		showProgress();
+	}
+
+	private void showProgress() {
+		double sum = 0;
+		for (int i = 0; i < total; i++)
+			if (lengths[i] > 0)
+				sum += read[i] / (double)lengths[i];
+		final double progress = sum / total;
+		final int percent = (int)(100 * progress);
+		// do not flood the status bar with identical updates
+		if (percent == shownPercent && finished == shownFinished)
+			return;
+		shownPercent = percent;
+		shownFinished = finished;
+		if (logToStderr)
+			System.err.print("\rDownloading samples: " + finished + "/" + total
+				+ " (" + percent + "%)");
+		else {
+			IJ.showStatus("Downloading samples: " + finished + "/" + total);
+			IJ.showProgress(progress);
+		}
+	}
+
+	/**
+	 * Returns the file in which the download for the given destination is
+	 * stored until it is complete.
+	 */
+	static File getPartialFile(final File destination) {
+		return new File(destination.getParentFile(),
+			"sample-" + destination.getName() + ".sample");
+	}
+
+	/**
+	 * Downloads a single file, resuming a previous, partial transfer if
+	 * possible.
+	 * <p>
+	 * The data is transferred from a {@link ReadableByteChannel} into a
+	 * {@link FileChannel} in chunks of {@value #CHUNK_SIZE} bytes. If the
+	 * content length is known, the file is preallocated to its final size
+	 * first; whenever the transfer stops short, the file is truncated to what
+	 * has actually been written so that its length tells where to resume. A
+	 * partial file that is too long (e.g. after the JVM was killed during the
+	 * transfer) is detected via the server's {@code 416} response, and the
+	 * download starts over.
+	 * </p>
+	 *
+	 * @param connection the (not yet connected) connection
+	 * @param destination the file to write
+	 * @param progress the progress listener, or null
+	 */
+	static void transfer(final URLConnection connection,
+			final File destination, final Progress progress)
+			throws IOException {
+		final File parent = destination.getParentFile();
+		if (!parent.exists() && !parent.mkdirs())
+			throw new IOException("Could not make directory " + parent);
+
+		final File partial = getPartialFile(destination);
+		long offset = partial.length();
+		final boolean isHTTP = connection instanceof HttpURLConnection;
+		if (offset > 0 && isHTTP) {
+			connection.setRequestProperty("Range", "bytes=" + offset + "-");
+			final int code = ((HttpURLConnection)connection).getResponseCode();
+			final String range = connection.getHeaderField("Content-Range");
+			if (code == HTTP_RANGE_NOT_SATISFIABLE || (code ==
+					HttpURLConnection.HTTP_PARTIAL && (range == null ||
+					!range.startsWith("bytes " + offset + "-")))) {
+				((HttpURLConnection)connection).disconnect();
+				if (!partial.delete())
+					throw new IOException("Could not delete " + partial);
+				transfer(connection.getURL().openConnection(), destination,
+					progress);
+				return;
+			}
+			if (code != HttpURLConnection.HTTP_PARTIAL)
+				offset = 0; // the server sends the whole file
+		}
+		else
+			offset = 0;
+
+		final ReadableByteChannel in =
+			Channels.newChannel(connection.getInputStream());
+		long length = connection.getContentLengthLong();
+		if (length >= 0)
+			length += offset;
+		final RandomAccessFile file = new RandomAccessFile(partial, "rw");
+		final FileChannel out = file.getChannel();
+		long position = offset;
+		try {
+			if (length > offset)
+				file.setLength(length);
+			else
+				out.truncate(offset);
+			for (;;) {
+				final long count = out.transferFrom(in, position, CHUNK_SIZE);
+				if (count <= 0)
+					break;
+				position += count;
+				if (progress != null)
+					progress.update(position, length);
+			}
+			if (length >= 0 && position != length)
+				throw new IOException("Incomplete download of "
+					+ connection.getURL() + ": " + position + "/" + length);
+		}
+		finally {
+			in.close();
+			try {
+				if (out.size() > position)
+					out.truncate(position);
+			}
+			finally {
+				file.close();
+			}
+		}
+
+		try {
+			Files.move(partial.toPath(), destination.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(partial.toPath(), destination.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -2,7 +2,6 @@
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.Menus;
 import ij.io.Opener;
 import ij.plugin.PlugIn;
 import ij.plugin.URLOpener;
@@ -10,14 +9,13 @@
 import java.awt.Menu;
 import java.awt.MenuItem;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SampleImageLoader implements PlugIn {
 	protected final static String plugin = "ij.plugin.URLOpener";
@@ -35,7 +33,9 @@ public void run(String arg) {
 
 		File cached = getCached(arg);
 		if (cached != null) try {
-			final ImagePlus imp = IJ.openImage(cached.getPath());
+			ImagePlus imp = MappedTiffOpener.open(cached);
+			if (imp == null)
+				imp = IJ.openImage(cached.getPath());
 			if (imp != null) {
 				switch (imp.getBitDepth()) {
 				case 16:
@@ -47,6 +47,9 @@ public void run(String arg) {
 					break;
 				}
 				imp.show();
+				if (IJ.debugMode)
+					IJ.log("Sample cache: " + getCacheHits() + " hits, "
+						+ getCacheMisses() + " misses");
 				return;
 			}
 		} catch(Exception e) { e.printStackTrace(); }
@@ -58,16 +61,39 @@ protected static File getCached(String url) {
 		return getCached(url, false);
 	}
 
+	/** @return how often a sample was opened from the cache in this session */
+	public static long getCacheHits() {
+		final SampleCache cache = SampleCache.getInstance();
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	/** @return how often a sample was not found in the cache in this session */
+	public static long getCacheMisses() {
+		final SampleCache cache = SampleCache.getInstance();
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	/**
+	 * Looks up a sample in the {@link SampleCache}.
+	 *
+	 * @param url the URL of the sample
+	 * @param evenIfNotExists whether to return the file to download the sample
+	 *          into if it is not cached yet
+	 * @return the verified cached copy, the file to download into, or null
+	 */
 	protected static File getCached(String url, boolean evenIfNotExists) {
-		String ijDir = System.getProperty("ij.dir");
-		if (ijDir != null) {
-			int slash = url.lastIndexOf('/');
-			File file = new File(ijDir + "/samples",
-					url.substring(slash + 1));
-			if (evenIfNotExists || file.exists())
-				return file;
-		}
-		return null;
+		final SampleCache cache = SampleCache.getInstance();
+		if (cache == null)
+			return null;
+		final File file = cache.get(url);
+		if (file != null || !evenIfNotExists)
+			return file;
+		return cache.getIncomingFile(url);
+	}
+
+	protected static boolean isCached(String url) {
+		final SampleCache cache = SampleCache.getInstance();
+		return cache != null && cache.contains(url);
 	}
 
 	protected interface SampleHandler {
@@ -79,10 +105,9 @@ protected static void handleSamples(SampleHandler handler) {
 		if (menu == null)
 			return;
 
-		Hashtable<?, ?> commands = Menus.getCommands();
 		for (int i = 0; i < menu.getItemCount(); i++) {
 			String label = menu.getItem(i).getLabel();
-			String command = (String)commands.get(label);
+			String command = CommandRegistry.get(label);
 			String url = null;
 			if (command != null && command.endsWith("\")") &&
 					command.startsWith(plugin + "(\""))
@@ -105,6 +130,18 @@ else if (command != null && command.endsWith("\")") &&
 	protected static class InstallHandler implements SampleHandler {
 		protected Hashtable<String, String> commands;
 		protected boolean hasUncached = false;
+		/** The URLs of all samples. */
+		private final List<String> urls = new ArrayList<String>();
+		/** The commands to install into the {@link CommandRegistry}. */
+		private final Map<String, String> pending = new LinkedHashMap<String, String>();
+
+		/**
+		 * Collects the commands to install into the {@link CommandRegistry} by
+		 * {@link #commit()}.
+		 */
+		public InstallHandler() {
+			this(null);
+		}
 
 		public InstallHandler(Hashtable<String, String> commands) {
 			this.commands = commands;
@@ -112,33 +149,98 @@ public InstallHandler(Hashtable<String, String> commands) {
 
 		@Override
 		public void handle(String label, String url) {
-			commands.put(label, thisPlugin + "(\"" + url + "\")");
-			 if (getCached(url) == null)
+			final String command = thisPlugin + "(\"" + url + "\")";
+			if (commands == null)
+				pending.put(label, command);
+			else
+				commands.put(label, command);
+			urls.add(url);
+			if (!isCached(url))
 				hasUncached = true;
 		}
+
+		/** Installs the collected commands into the {@link CommandRegistry}. */
+		public void commit() {
+			for (final Map.Entry<String, String> entry : pending.entrySet()) {
+				// only touch what changed, keeping the registry's snapshot
+				if (!entry.getValue().equals(CommandRegistry.get(entry.getKey())))
+					CommandRegistry.put(entry.getKey(), entry.getValue());
+			}
+			pending.clear();
+		}
 	}
 
 	public static void install() {
-		@SuppressWarnings("unchecked")
-		Hashtable<String, String> commands = Menus.getCommands();
-
-		InstallHandler handler = new InstallHandler(commands);
+		// walk the menu and the cache before locking the command table
+		final InstallHandler handler = new InstallHandler();
 		handleSamples(handler);
+		final MenuItem ij1Item = CommandRegistry.containsKey(menuItemLabel) ? null :
+			FijiTools.getMenuItem(menuPath + ">" + ij1MenuItemLabel);
+		final MenuItem[] item = new MenuItem[1];
+		final boolean[] needsItem = new boolean[1];
+		CommandRegistry.batch(new Runnable() {
+			public void run() {
+				handler.commit();
+
+				if (!CommandRegistry.containsKey(menuItemLabel)) {
+					if (CommandRegistry.containsKey(ij1MenuItemLabel)) {
+						item[0] = ij1Item;
+						CommandRegistry.put(ij1MenuItemLabel, thisPlugin + "(\"cache\")");
+						CommandRegistry.put(menuItemLabel, thisPlugin + "(\"cache\")");
+					}
+					else
+						needsItem[0] = true;
+				}
+			}
+		});
+		if (needsItem[0])
+			item[0] = FijiTools.installPlugin(menuPath, menuItemLabel,
+				thisPlugin + "(\"cache\")");
+		if (item[0] != null)
+			item[0].setEnabled(handler.hasUncached);
+		final SampleCache cache = SampleCache.getInstance();
+		if (cache != null)
+			cache.migrateLegacy(handler.urls);
+		listenToCache();
+	}
 
-		if (!commands.containsKey(menuItemLabel)) {
-			MenuItem item;
-			if (commands.containsKey(ij1MenuItemLabel)) {
-				item = FijiTools.getMenuItem(menuPath + ">" + ij1MenuItemLabel);
-				commands.put(ij1MenuItemLabel, thisPlugin + "(\"cache\")");
-				commands.put(menuItemLabel, thisPlugin + "(\"cache\")");
+	private static boolean listening;
+
+	/*
+	 * Keeps the enabled state of "Cache Sample Images" in sync when samples
+	 * are added to or removed from the cache, e.g. by another Fiji instance.
+	 */
+	private static synchronized void listenToCache() {
+		final SampleCache cache = SampleCache.getInstance();
+		if (listening || cache == null)
+			return;
+		listening = true;
+		final Runnable update = new Runnable() {
+			@Override
+			public void run() {
+				MenuItem item = FijiTools.getMenuItem(menuPath + ">" + menuItemLabel);
+				if (item == null)
+					item = FijiTools.getMenuItem(menuPath + ">" + ij1MenuItemLabel);
+				if (item == null)
+					return;
+				final boolean[] hasUncached = new boolean[1];
+				handleSamples(new SampleHandler() {
+					@Override
+					public void handle(String label, String url) {
+						if (!hasUncached[0] && !isCached(url))
+							hasUncached[0] = true;
+					}
+				});
+				item.setEnabled(hasUncached[0]);
 			}
-			else {
-				item = FijiTools.installPlugin(menuPath, menuItemLabel,
-					thisPlugin + "(\"cache\")");
+		};
+		cache.addListener(new Runnable() {
+			@Override
+			public void run() {
+				// coalesce bursts of file system events
+				new InvokeLater(1, update).later(250);
 			}
-			if (item != null)
-				item.setEnabled(handler.hasUncached);
-		}
+		});
 	}
 
 	public static void fetchSamples() {
@@ -146,20 +248,19 @@ public static void fetchSamples() {
 		handleSamples(new SampleHandler() {
 			@Override
 			public void handle(String label, String url) {
-				if (getCached(url) == null)
+				if (!isCached(url))
 					urls.add(url);
 			}
 		});
 
-		if (urls.size() == 0)
+		final SampleCache cache = SampleCache.getInstance();
+		if (urls.size() == 0 || cache == null)
 			return;
 
 		boolean logToStderr = IJ.getInstance() == null;
 		try {
-			for (int i = 0; i < urls.size(); i++)
-				download(new URL(urls.get(i)).openConnection(),
-					getCached(urls.get(i), true),
-					i, urls.size(), logToStderr);
+			new SampleFetcher(SampleFetcher.getDefaultParallelism(),
+				logToStderr).fetch(cache, urls);
 			FijiTools.getMenuItem(menuPath + ">" + menuItemLabel)
 				.setEnabled(false);
 		} catch (Exception e) {
@@ -175,42 +276,28 @@ public void handle(String label, String url) {
 	}
 
 	public static void download(URLConnection connection, File destination,
-			int nr, int total, boolean logToStderr)
+			final int nr, final int total, final boolean logToStderr)
 			throws IOException {
-		String message = "Downloading " + (nr + 1) + "/" + total + ": "
+		final String message = "Downloading " + (nr + 1) + "/" + total + ": "
 			+ destination.getName();
-		long length = connection.getContentLength(), totalRead = 0;
 		if (logToStderr)
 			System.err.print(message);
 		else
 			IJ.showStatus(message);
-		byte[] buffer = new byte[16384];
-		InputStream in = connection.getInputStream();
-		File parent = destination.getParentFile();
-		if (!parent.exists() && !parent.mkdirs())
-			throw new IOException("Could not make directory " + parent);
-		File tmp = File.createTempFile("sample-", ".sample", parent);
-		FileOutputStream out = new FileOutputStream(tmp);
-		for (;;) {
-			int count = in.read(buffer);
-			if (count < 0)
-				break;
-			out.write(buffer, 0, count);
-			if (length < 0)
-				continue;
-			totalRead += count;
-			if (logToStderr)
-				System.err.print("\r" + message + " "
-					+ totalRead + "/" + length);
-			else
-				IJ.showProgress((nr
-					+ totalRead / (float)length) / total);
-		}
-		in.close();
-		out.close();
-		if (destination.exists())
-			destination.delete(); // bend over for Windows
-		tmp.renameTo(destination);
+		SampleFetcher.transfer(connection, destination,
+			new SampleFetcher.Progress() {
+				@Override
+				public void update(long totalRead, long length) {
+					if (length < 0)
+						return;
+					if (logToStderr)
+						System.err.print("\r" + message + " "
+							+ totalRead + "/" + length);
+					else
+						IJ.showProgress((nr
+							+ totalRead / (float)length) / total);
+				}
+			});
 		if (!logToStderr)
 			IJ.showProgress(nr + 1, total);
 	}
@@ -0,0 +1,237 @@
+package sc.fiji.compat;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs startup steps concurrently, respecting their dependencies.
+ * <p>
+ * Each step is declared with the names of the steps it needs to run after.
+ * Steps touching AWT/Swing components are marked as such and run on the event
+ * dispatch thread; all others run on a small pool of daemon threads. Every
+ * step's start and end (relative to the start of {@link #run()}) are recorded
+ * and can be inspected via {@link #getTimeline()}.
+ * </p>
+ * <p>
+ * A failing step is reported, and the steps depending on it are skipped.
+ * </p>
+ */
+class StartupTasks {
+
+	private static class Task {
+		final String name;
+		final boolean onEDT;
+		final Runnable runnable;
+		final List<String> dependencies;
+		final List<Task> dependents = new ArrayList<Task>();
+		AtomicInteger pending;
+		volatile long start = -1, end = -1;
+		volatile String thread;
+		volatile Throwable failure;
+		volatile boolean skipped;
+
+		Task(final String name, final boolean onEDT, final Runnable runnable,
+				final String[] dependencies) {
+			this.name = name;
+			this.onEDT = onEDT;
+			this.runnable = runnable;
+			this.dependencies = Arrays.asList(dependencies);
+		}
+	}
+
+	private final static int THREADS = Math.max(2, Math.min(4,
+		Runtime.getRuntime().availableProcessors()));
+
+	private final String threadName;
+	private final Map<String, Task> tasks = new LinkedHashMap<String, Task>();
+	private ExecutorService executor;
+	private CountDownLatch done;
+	private long startNanos;
+
+	StartupTasks() {
+		this("Fiji startup");
+	}
+
+	/**
+	 * @param threadName the prefix of the worker threads' names
+	 */
+	StartupTasks(final String threadName) {
+		this.threadName = threadName;
+	}
+
+	/**
+	 * Declares a startup step.
+	 *
+	 * @param name the unique name of the step
+	 * @param onEDT whether the step needs to run on the event dispatch thread
+	 * @param runnable the step
+	 * @param dependencies the names of the steps that need to finish first
+	 */
+	StartupTasks add(final String name, final boolean onEDT,
+			final Runnable runnable, final String... dependencies) {
+		if (tasks.containsKey(name))
+			throw new IllegalArgumentException("Duplicate startup task: " + name);
+		tasks.put(name, new Task(name, onEDT, runnable, dependencies));
+		return this;
+	}
+
+	/**
+	 * Runs all steps and waits for them to finish.
+	 * <p>
+	 * When called on the event dispatch thread, the steps run one after the
+	 * other instead, in an order satisfying their dependencies, since waiting
+	 * for steps that need to run on that very thread would never end.
+	 * </p>
+	 */
+	void run() {
+		for (final Task task : tasks.values()) {
+			task.pending = new AtomicInteger(task.dependencies.size());
+			for (final String name : task.dependencies) {
+				final Task dependency = tasks.get(name);
+				if (dependency == null)
+					throw new IllegalArgumentException("Startup task " + task.name
+						+ " depends on unknown task " + name);
+				dependency.dependents.add(task);
+			}
+		}
+
+		final List<Task> order = sort();
+
+		startNanos = System.nanoTime();
+		done = new CountDownLatch(tasks.size());
+		if (EventQueue.isDispatchThread()) {
+			for (final Task task : order)
+				execute(task);
+			return;
+		}
+
+		final AtomicInteger counter = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable,
+					threadName + " " + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (final Task task : tasks.values())
+				if (task.dependencies.isEmpty())
+					submit(task);
+			done.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/*
+	 * Orders the tasks so that each comes after its dependencies (Kahn's
+	 * algorithm), failing early on cycles, which would otherwise make run()
+	 * wait forever.
+	 */
+	private List<Task> sort() {
+		final Map<Task, Integer> pending = new HashMap<Task, Integer>();
+		final List<Task> order = new ArrayList<Task>();
+		for (final Task task : tasks.values()) {
+			pending.put(task, task.dependencies.size());
+			if (task.dependencies.isEmpty())
+				order.add(task);
+		}
+		for (int i = 0; i < order.size(); i++)
+			for (final Task dependent : order.get(i).dependents) {
+				final int count = pending.get(dependent) - 1;
+				pending.put(dependent, count);
+				if (count == 0)
+					order.add(dependent);
+			}
+		if (order.size() < tasks.size())
+			throw new IllegalArgumentException("Cyclic startup task dependencies");
+		return order;
+	}
+
+	private void submit(final Task task) {
+		final Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				execute(task);
+				for (final Task dependent : task.dependents)
+					if (dependent.pending.decrementAndGet() == 0)
+						submit(dependent);
+			}
+		};
+		if (task.onEDT)
+			EventQueue.invokeLater(runnable);
+		else
+			executor.execute(runnable);
+	}
+
+	private void execute(final Task task) {
+		try {
+			for (final String name : task.dependencies) {
+				final Task dependency = tasks.get(name);
+				if (dependency.failure != null || dependency.skipped) {
+					task.skipped = true;
+					return;
+				}
+			}
+			task.thread = Thread.currentThread().getName();
+			task.start = System.nanoTime() - startNanos;
+			try {
+				task.runnable.run();
+			} catch (final Throwable t) {
+				task.failure = t;
+				t.printStackTrace();
+			}
+			task.end = System.nanoTime() - startNanos;
+		}
+		finally {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Determines whether all steps ran successfully.
+	 */
+	boolean succeeded() {
+		for (final Task task : tasks.values())
+			if (task.failure != null || task.skipped || task.end < 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Describes when, and on which thread, each step ran.
+	 *
+	 * @return one line per step, in milliseconds since startup began
+	 */
+	String getTimeline() {
+		final StringBuilder builder = new StringBuilder();
+		for (final Task task : tasks.values()) {
+			builder.append(String.format("%-24s ", task.name));
+			if (task.skipped)
+				builder.append("skipped");
+			else if (task.start < 0)
+				builder.append("not run");
+			else
+				builder.append(String.format("%8.1f - %8.1f ms (%s)%s",
+					task.start / 1e6, task.end / 1e6, task.thread,
+					task.failure != null ? " failed: " + task.failure : ""));
+			builder.append("\n");
+		}
+		return builder.toString();
+	}
+}
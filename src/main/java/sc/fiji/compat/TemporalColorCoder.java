@@ -0,0 +1,384 @@
+package sc.fiji.compat;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.plugin.LutLoader;
+import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Color-codes the frames of a time-lapse and projects them into one RGB image.
+ * <p>
+ * This is the engine behind
+ * {@code plugins/Scripts/Image/Hyperstacks/Temporal-Color_Code.ijm}, which
+ * used to duplicate the whole stack, then copy every frame into a temporary
+ * image, apply a lookup table, convert it to RGB and paste it into an RGB
+ * stack as large as the input, only to compute the maximum intensity
+ * projection of that stack at the end. Instead, the frames are read once and
+ * each frame's pixels are looked up in a table mapping the frame's color and
+ * the pixel's intensity to an RGB value, which is then accumulated into the
+ * running per-channel maximum. The frames are distributed over
+ * {@link Prefs#getThreads()} threads, each with its own partial projection;
+ * the partial projections are combined at the end.
+ * </p>
+ * <p>
+ * The result is identical to the macro's: 16-bit and 32-bit images are
+ * scaled to 8-bit using the display range, and the color of frame {@code i}
+ * (of {@code n}) is the lookup table's entry {@code floor(256 / n * i)},
+ * multiplied by the normalized intensity.
+ * </p>
+ */
+public class TemporalColorCoder implements PlugIn {
+
+	private final ImagePlus image;
+	private final IndexColorModel lut;
+	private final int startFrame, endFrame;
+	private final int threads;
+
+	private int slices, frames;
+
+	public TemporalColorCoder() {
+		this(null, null, 1, Integer.MAX_VALUE, Prefs.getThreads());
+	}
+
+	/**
+	 * @param image the time-lapse; a stack with a single frame is interpreted
+	 *          as frames instead of slices
+	 * @param lut the lookup table providing the frames' colors
+	 * @param startFrame the first frame to code (1-based)
+	 * @param endFrame the last frame to code (inclusive)
+	 * @param threads how many frames to process at the same time
+	 */
+	public TemporalColorCoder(final ImagePlus image, final IndexColorModel lut,
+			final int startFrame, final int endFrame, final int threads) {
+		this.image = image;
+		this.lut = lut;
+		this.startFrame = startFrame;
+		this.endFrame = endFrame;
+		this.threads = Math.max(1, threads);
+	}
+
+	@Override
+	public void run(final String arg) {
+		final ImagePlus image = IJ.getImage();
+		if (image.getNChannels() > 1) {
+			IJ.error("Cannot color-code multi-channel images!");
+			return;
+		}
+		final String[] luts = IJ.getLuts();
+		final int frames = image.getNFrames() > 1 ? image.getNFrames() :
+			image.getNSlices();
+		final GenericDialog gd = new GenericDialog("Color Code Settings");
+		gd.addChoice("LUT", luts, luts.length > 0 ? luts[0] : "Fire");
+		gd.addNumericField("start frame", 1, 0);
+		gd.addNumericField("end frame", frames, 0);
+		gd.addCheckbox("Create Time Color Scale Bar", true);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		code(gd.getNextChoice(), "" + (int)gd.getNextNumber(),
+			"" + (int)gd.getNextNumber(), "" + gd.getNextBoolean());
+	}
+
+	/**
+	 * Entry point for the macro's {@code call()}: color-codes the current image
+	 * and shows the result (in batch mode, if the macro is in batch mode).
+	 *
+	 * @param lutName the name of the lookup table
+	 * @param start the first frame
+	 * @param end the last frame
+	 * @param scaleBar whether to create a color scale bar, too
+	 * @return the title of the result, or the empty string upon error
+	 */
+	public static String code(final String lutName, final String start,
+			final String end, final String scaleBar) {
+		final ImagePlus image = WindowManager.getCurrentImage();
+		if (image == null) {
+			IJ.noImage();
+			return "";
+		}
+		try {
+			final IndexColorModel lut = getLut(lutName);
+			final int startFrame = (int)Double.parseDouble(start);
+			final int endFrame = (int)Double.parseDouble(end);
+			final TemporalColorCoder coder = new TemporalColorCoder(image, lut,
+				startFrame, endFrame, Prefs.getThreads());
+			final ImagePlus result = coder.code();
+			result.show();
+			if (Boolean.parseBoolean(scaleBar) || "1".equals(scaleBar))
+				coder.createScaleBar().show();
+			return result.getTitle();
+		} catch (IllegalArgumentException e) {
+			IJ.error("Temporal-Color Code", e.getMessage());
+		} catch (IOException e) {
+			IJ.handleException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			IJ.handleException(e.getCause());
+		}
+		return "";
+	}
+
+	/**
+	 * Looks up a lookup table by name, first in the {@link LutCache} of Fiji's
+	 * {@code luts/} directory, then in files the cache does not know (e.g.
+	 * {@code .txt}), then by running the (menu) command of that name on a small
+	 * image, as the built-in lookup tables are not available as files.
+	 */
+	public static IndexColorModel getLut(final String name) throws IOException {
+		final LutCache cache = LutCache.getInstance();
+		final LUT cached = cache == null ? null : cache.getLUT(name);
+		if (cached != null)
+			return cached;
+		final String directory = IJ.getDirectory("luts");
+		if (directory != null) {
+			final File file = new File(directory, name + ".txt");
+			if (file.isFile())
+				return LutLoader.open(file.getPath());
+		}
+		final ImagePlus stamp = new ImagePlus("stamp", new ByteProcessor(1, 1));
+		IJ.run(stamp, name, "");
+		final IndexColorModel lut =
+			(IndexColorModel)stamp.getProcessor().getColorModel();
+		if (lut == null)
+			throw new IllegalArgumentException("No such lookup table: " + name);
+		return lut;
+	}
+
+	/**
+	 * Computes the projection of the color-coded frames.
+	 *
+	 * @return an RGB image, or stack (one slice per input slice)
+	 */
+	public ImagePlus code() throws InterruptedException, ExecutionException {
+		if (image.getNChannels() > 1)
+			throw new IllegalArgumentException("Cannot color-code multi-channel images!");
+		slices = image.getNSlices();
+		frames = image.getNFrames();
+		final boolean swap = slices > 1 && frames == 1;
+		if (swap) {
+			frames = slices;
+			slices = 1;
+		}
+		final int first = Math.max(1, startFrame);
+		final int last = Math.min(frames, endFrame);
+		if (first > last)
+			throw new IllegalArgumentException("Invalid frame range: " + startFrame +
+				" - " + endFrame);
+
+		final int total = last - first + 1;
+		final int pixelCount = image.getWidth() * image.getHeight();
+		final ImageStack stack = image.getStack();
+		final ToByte toByte = new ToByte(image);
+
+		final int count = Math.min(threads, total);
+		final ExecutorService executor = Executors.newFixedThreadPool(count);
+		final List<Future<int[][]>> partials = new ArrayList<Future<int[][]>>();
+		try {
+			for (int t = 0; t < count; t++) {
+				final int offset = t;
+				partials.add(executor.submit(new Callable<int[][]>() {
+					@Override
+					public int[][] call() {
+						final int[][] projection = new int[slices][pixelCount];
+						final int[] colors = new int[256];
+						// interleave the frames so that virtual stacks are read in order
+						for (int i = offset; i < total; i += count) {
+							getColors(i, total, colors);
+							for (int z = 0; z < slices; z++) {
+								final int index = swap ? image.getStackIndex(1, i + first, 1) :
+									image.getStackIndex(1, z + 1, i + first);
+								final byte[] pixels = toByte.convert(getProcessor(stack, index));
+								accumulate(pixels, colors, projection[z]);
+							}
+							if (offset == 0)
+								IJ.showProgress(i + 1, total);
+						}
+						return projection;
+					}
+				}));
+			}
+
+			int[][] projection = null;
+			for (final Future<int[][]> partial : partials) {
+				final int[][] pixels = partial.get();
+				if (projection == null)
+					projection = pixels;
+				else
+					for (int z = 0; z < slices; z++)
+						max(pixels[z], projection[z]);
+			}
+			IJ.showProgress(1, 1);
+
+			final ImageStack result = new ImageStack(image.getWidth(),
+				image.getHeight());
+			for (int z = 0; z < slices; z++)
+				result.addSlice(null, new ColorProcessor(image.getWidth(),
+					image.getHeight(), projection[z]));
+			final ImagePlus imp = new ImagePlus("MAX_colored", result);
+			if (slices > 1) {
+				imp.setDimensions(1, slices, 1);
+				imp.setOpenAsHyperStack(true);
+			}
+			imp.setCalibration(image.getCalibration());
+			return imp;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates the color scale bar: the lookup table, labeled with the first and
+	 * last frame.
+	 */
+	public ImagePlus createScaleBar() {
+		final int width = 256, height = 32;
+		final ColorProcessor ip = new ColorProcessor(width, height + 16);
+		final int[] pixels = (int[])ip.getPixels();
+		for (int x = 0; x < width; x++) {
+			final int rgb = getRGB(x);
+			for (int y = 0; y < height; y++)
+				pixels[x + y * width] = rgb;
+		}
+		final int last = frames > 0 ? Math.min(frames, endFrame) : endFrame;
+		ip.setFont(new Font("SansSerif", Font.PLAIN, 12));
+		ip.setAntialiasedText(true);
+		ip.setColor(Color.WHITE);
+		ip.drawString("frame", width / 2 - 12, height + 16);
+		ip.drawString(leftPad(Math.max(1, startFrame), 3), 0, height + 16);
+		ip.drawString(leftPad(last, 3), width - 24, height + 16);
+		return new ImagePlus("color time scale", ip);
+	}
+
+	/*
+	 * The RGB values of the given frame, for all 8-bit intensities, rounded as
+	 * the macro did.
+	 */
+	private void getColors(final int frame, final int total, final int[] colors) {
+		final int color = getRGB((int)Math.floor(256.0 / total * frame));
+		final int red = (color >> 16) & 0xff, green = (color >> 8) & 0xff,
+				blue = color & 0xff;
+		for (int j = 0; j < 256; j++) {
+			final double factor = j / 255.0;
+			colors[j] = 0xff000000 | ((int)Math.round(red * factor) << 16) |
+				((int)Math.round(green * factor) << 8) | (int)Math.round(blue * factor);
+		}
+	}
+
+	/*
+	 * Virtual stacks read from files, or compute, their slices, and most of
+	 * them are not thread-safe.
+	 */
+	private static ImageProcessor getProcessor(final ImageStack stack,
+			final int index) {
+		if (!stack.isVirtual())
+			return stack.getProcessor(index);
+		synchronized (stack) {
+			return stack.getProcessor(index);
+		}
+	}
+
+	private int getRGB(final int index) {
+		return lut.getRGB(Math.min(index, lut.getMapSize() - 1));
+	}
+
+	private static void accumulate(final byte[] pixels, final int[] colors,
+			final int[] projection) {
+		for (int i = 0; i < pixels.length; i++) {
+			final int rgb = colors[pixels[i] & 0xff];
+			final int max = projection[i];
+			if (rgb != max)
+				projection[i] = maxRGB(rgb, max);
+		}
+	}
+
+	private static void max(final int[] source, final int[] target) {
+		for (int i = 0; i < source.length; i++)
+			target[i] = maxRGB(source[i], target[i]);
+	}
+
+	/** The per-channel maximum of two RGB values. */
+	private static int maxRGB(final int a, final int b) {
+		return 0xff000000 | Math.max(a & 0xff0000, b & 0xff0000) |
+			Math.max(a & 0xff00, b & 0xff00) | Math.max(a & 0xff, b & 0xff);
+	}
+
+	private static String leftPad(final int n, final int width) {
+		final StringBuilder builder = new StringBuilder();
+		builder.append(n);
+		while (builder.length() < width)
+			builder.insert(0, '0');
+		return builder.toString();
+	}
+
+	/**
+	 * Converts frames to 8-bit the way {@code run("8-bit")} does, i.e. scaling
+	 * by the display range, but without allocating for 8-bit and 16-bit frames.
+	 * The frames themselves are left alone.
+	 */
+	private static class ToByte {
+		private final byte[] table;
+		private final double min, max;
+		private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>();
+
+		ToByte(final ImagePlus image) {
+			min = image.getDisplayRangeMin();
+			max = image.getDisplayRangeMax();
+			if (image.getBitDepth() != 16) {
+				table = null;
+				return;
+			}
+			table = new byte[65536];
+			final double scale = 256.0 / ((int)max - (int)min + 1);
+			for (int i = 0; i < table.length; i++) {
+				final double value = Math.max(0, i - (int)min) * scale + 0.5;
+				table[i] = (byte)Math.min(255, (int)value);
+			}
+		}
+
+		byte[] convert(final ImageProcessor ip) {
+			if (ip instanceof ByteProcessor)
+				return (byte[])ip.getPixels();
+			if (ip instanceof ShortProcessor) {
+				final short[] pixels = (short[])ip.getPixels();
+				byte[] result = buffer.get();
+				if (result == null || result.length != pixels.length) {
+					result = new byte[pixels.length];
+					buffer.set(result);
+				}
+				for (int i = 0; i < pixels.length; i++)
+					result[i] = table[pixels[i] & 0xffff];
+				return result;
+			}
+			if (ip instanceof ColorProcessor)
+				// setMinAndMax() would modify the RGB pixels
+				return (byte[])ip.convertToByte(false).getPixels();
+			final ImageProcessor copy = ip.duplicate();
+			copy.setMinAndMax(min, max);
+			return (byte[])copy.convertToByte(true).getPixels();
+		}
+	}
+}